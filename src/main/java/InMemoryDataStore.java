@@ -1,255 +1,2973 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 public class InMemoryDataStore {
 
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    private static final int OPERATION_OVERHEAD_BYTES = 64;
+    private static final int MIN_DELTA_SAVING_CHARS = 16;
+    private static final long FSYNC_INTERVAL_MILLIS = 50;
+
     private final Map<String, ValueWithTTL> store = new ConcurrentHashMap<>();
-    private final Deque<Operation> undoStack = new LinkedList<>();
-    private final Deque<Operation> redoStack = new LinkedList<>();
+    // Sorted view of the live keys, kept in step with store under the key's stripe lock.
+    private final NavigableSet<String> keyIndex = new ConcurrentSkipListSet<>();
+    private final HistoryLog history;
+    private final Object historyLock = new Object();
+    private final ConcurrencyMode mode;
+    private final ReentrantLock[] stripes;
+    private final EvictionConfig eviction;
+    private final TimeSource timeSource;
+    private final Map<String, CopyOnWriteArrayList<Watch>> keyWatches = new ConcurrentHashMap<>();
+    private final List<Watch> prefixWatches = new CopyOnWriteArrayList<>();
+    private final Object watchLock = new Object();
+    private volatile int watchCount;
+    private final SlabAllocator offHeap;
+    // With no undo history nothing else holds on to an entry, so writes can reuse it instead of allocating.
+    private final boolean inPlaceUpdates;
+    // Keys in insertion order for the CLOCK sweep; may hold keys that have since been removed.
+    private final Queue<String> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicLong clockSize = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Inserted keys awaiting TinyLFU admission, in insert order; drained by whichever thread holds evictionLock.
+    private final Queue<String> pendingCandidates = new ConcurrentLinkedQueue<>();
+    private final FrequencySketch sketch;
+    private final LongAdder usedBytes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private volatile ExpiryScheduler expiryScheduler;
+    private volatile WriteAheadLog wal;
+    private ScheduledExecutorService persistenceExecutor;
+    private final Object snapshotLock = new Object();
+
+    /**
+     * SYNCHRONIZED serializes every call on one lock (the original behaviour).
+     * STRIPED lets reads go straight to the map and only serializes writes that hash to the same stripe.
+     */
+    public enum ConcurrencyMode {
+        SYNCHRONIZED,
+        STRIPED
+    }
+
+    public InMemoryDataStore() {
+        this(ConcurrencyMode.SYNCHRONIZED);
+    }
+
+    public InMemoryDataStore(ConcurrencyMode mode) {
+        this(mode, HistoryConfig.unbounded());
+    }
+
+    public InMemoryDataStore(ConcurrencyMode mode, HistoryConfig historyConfig) {
+        this(mode, historyConfig, EvictionConfig.unbounded());
+    }
+
+    public InMemoryDataStore(ConcurrencyMode mode, HistoryConfig historyConfig, EvictionConfig evictionConfig) {
+        this(mode, historyConfig, evictionConfig, TimeSource.SYSTEM);
+    }
+
+    public InMemoryDataStore(ConcurrencyMode mode, HistoryConfig historyConfig, EvictionConfig evictionConfig,
+                             TimeSource timeSource) {
+        this(mode, historyConfig, evictionConfig, timeSource, StorageMode.HEAP);
+    }
+
+    public InMemoryDataStore(ConcurrencyMode mode, HistoryConfig historyConfig, EvictionConfig evictionConfig,
+                             TimeSource timeSource, StorageMode storageMode) {
+        this.mode = Objects.requireNonNull(mode, "Mode cannot be null");
+        this.offHeap = Objects.requireNonNull(storageMode, "Storage mode cannot be null") == StorageMode.OFF_HEAP
+                ? new SlabAllocator()
+                : null;
+        this.timeSource = Objects.requireNonNull(timeSource, "Time source cannot be null");
+        this.history = new HistoryLog(Objects.requireNonNull(historyConfig, "History config cannot be null"));
+        this.eviction = Objects.requireNonNull(evictionConfig, "Eviction config cannot be null");
+        this.inPlaceUpdates = !history.isEnabled();
+        this.sketch = eviction.policy == EvictionPolicy.TINY_LFU
+                ? new FrequencySketch(eviction.maxEntries > 0 ? eviction.maxEntries : 1 << 16)
+                : null;
+        int stripeCount = (mode == ConcurrencyMode.STRIPED) ? DEFAULT_STRIPES : 1;
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private static class ValueWithTTL {
+        // Odd while overwrite() is in progress; lock-free readers retry if it changes under them.
+        private volatile int version;
+        private volatile String value;
+        private volatile long expiryTimestamp;
+        // CLOCK reference bit for eviction; set by readers without locking, not part of equality.
+        volatile boolean referenced;
+
+        ValueWithTTL(String value, long expiryTimestamp) {
+            this.value = value;
+            this.expiryTimestamp = expiryTimestamp;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        long getExpiryTimestamp() {
+            return expiryTimestamp;
+        }
+
+        boolean hasExpired(long now) {
+            long expiry = expiryTimestamp;
+            return expiry != -1 && now > expiry;
+        }
+
+        // Only reads the clock for entries that carry a TTL.
+        boolean hasExpired(TimeSource clock) {
+            long expiry = expiryTimestamp;
+            return expiry != -1 && clock.millis() > expiry;
+        }
+
+        // Reads value and expiry as a consistent pair; null if the entry has expired.
+        String valueIfLive(TimeSource clock) {
+            while (true) {
+                int before = version;
+                String current = value;
+                long expiry = expiryTimestamp;
+                if (unchangedSince(before)) {
+                    return (expiry != -1 && clock.millis() > expiry) ? null : current;
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        ValueWithTTL stableCopy() {
+            while (true) {
+                int before = version;
+                ValueWithTTL copy = new ValueWithTTL(value, expiryTimestamp);
+                if (unchangedSince(before)) {
+                    return copy;
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        int version() {
+            return version;
+        }
+
+        // True if no overwrite was in progress at before and none has started since.
+        boolean unchangedSince(int before) {
+            return (before & 1) == 0 && before == version;
+        }
+
+        // Off-heap entries return true once their memory has been handed back; readers must re-read the map.
+        boolean isReleased() {
+            return false;
+        }
+
+        long estimatedValueBytes() {
+            return 2L * value.length();
+        }
+
+        /**
+         * Replaces the value and expiry in place; returns false, changing nothing, if this entry cannot hold
+         * newValue. Caller holds the key's stripe lock, so writers never interleave.
+         */
+        boolean overwrite(String newValue, long newExpiryTimestamp) {
+            version++;
+            value = newValue;
+            expiryTimestamp = newExpiryTimestamp;
+            version++;
+            return true;
+        }
+
+        // Lets OffHeapValue move its bytes under the same version as the expiry.
+        void overwriteExpiry(long newExpiryTimestamp) {
+            expiryTimestamp = newExpiryTimestamp;
+        }
+
+        void beginOverwrite() {
+            version++;
+        }
+
+        void endOverwrite() {
+            version++;
+        }
+
+        @Override
+        public String toString() {
+            return "ValueWithTTL{" +
+                    "value='" + value + '\'' +
+                    ", expiryTimestamp=" + expiryTimestamp +
+                    '}';
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ValueWithTTL that = (ValueWithTTL) o;
+            return expiryTimestamp == that.expiryTimestamp && Objects.equals(value, that.value);
+        }
+        @Override
+        public int hashCode() {
+            return Objects.hash(value, expiryTimestamp);
+        }
+    }
+
+    private static class Operation {
+        final Command command;
+        final String key;
+        private final ValueWithTTL oldValue;
+        private final ValueWithTTL newValue;
+
+        Operation(Command command, String key, ValueWithTTL oldValue, ValueWithTTL newValue) {
+            this.command = command;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        // The value the key held before the operation; current is what the key holds now.
+        ValueWithTTL oldValue(ValueWithTTL current) {
+            return oldValue;
+        }
+
+        ValueWithTTL newValue(ValueWithTTL current) {
+            return newValue;
+        }
+
+        boolean canUndo(ValueWithTTL current) {
+            return true;
+        }
+
+        boolean canRedo(ValueWithTTL current) {
+            return true;
+        }
+
+        // The single-key operations this history entry undoes or redoes together, in the order they were applied.
+        List<Operation> parts() {
+            return Collections.singletonList(this);
+        }
+
+        long estimatedBytes() {
+            return OPERATION_OVERHEAD_BYTES + 2L * key.length() + valueBytes(oldValue) + valueBytes(newValue);
+        }
+
+        static long valueBytes(ValueWithTTL value) {
+            return value == null ? 0 : 40 + 2L * value.getValue().length();
+        }
+
+        @Override
+        public String toString() {
+            return "Operation{" +
+                    "command=" + command +
+                    ", key='" + key + '\'' +
+                    ", oldValue=" + oldValue +
+                    ", newValue=" + newValue +
+                    '}';
+        }
+    }
+
+    /**
+     * Holds only the span where the old and new values differ. Undo runs while the key still holds the new
+     * value and redo while it holds the old one, so the shared prefix and suffix are taken from the current
+     * entry; a length and hash check guards against the key having expired or changed outside the history.
+     */
+    private static class DeltaOperation extends Operation {
+        private final int prefixLength;
+        private final int suffixLength;
+        private final String oldMiddle;
+        private final String newMiddle;
+        private final long oldExpiryTimestamp;
+        private final long newExpiryTimestamp;
+        private final long contextHash;
+
+        private DeltaOperation(Command command, String key, ValueWithTTL oldValue, ValueWithTTL newValue,
+                               int prefixLength, int suffixLength) {
+            super(command, key, null, null);
+            String before = oldValue.getValue();
+            String after = newValue.getValue();
+            this.prefixLength = prefixLength;
+            this.suffixLength = suffixLength;
+            this.oldMiddle = before.substring(prefixLength, before.length() - suffixLength);
+            this.newMiddle = after.substring(prefixLength, after.length() - suffixLength);
+            this.oldExpiryTimestamp = oldValue.getExpiryTimestamp();
+            this.newExpiryTimestamp = newValue.getExpiryTimestamp();
+            this.contextHash = contextHash(before, prefixLength, suffixLength);
+        }
+
+        static Operation encode(Command command, String key, ValueWithTTL oldValue, ValueWithTTL newValue) {
+            if (oldValue == null || newValue == null) {
+                return new Operation(command, key, oldValue, newValue);
+            }
+            String before = oldValue.getValue();
+            String after = newValue.getValue();
+            int max = Math.min(before.length(), after.length());
+            int prefix = 0;
+            while (prefix < max && before.charAt(prefix) == after.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < max - prefix
+                    && before.charAt(before.length() - 1 - suffix) == after.charAt(after.length() - 1 - suffix)) {
+                suffix++;
+            }
+            if (prefix + suffix < MIN_DELTA_SAVING_CHARS) {
+                return new Operation(command, key, oldValue, newValue);
+            }
+            return new DeltaOperation(command, key, oldValue, newValue, prefix, suffix);
+        }
+
+        @Override
+        ValueWithTTL oldValue(ValueWithTTL current) {
+            return new ValueWithTTL(splice(current.getValue(), oldMiddle), oldExpiryTimestamp);
+        }
+
+        @Override
+        ValueWithTTL newValue(ValueWithTTL current) {
+            return new ValueWithTTL(splice(current.getValue(), newMiddle), newExpiryTimestamp);
+        }
+
+        @Override
+        boolean canUndo(ValueWithTTL current) {
+            return matches(current, newMiddle);
+        }
+
+        @Override
+        boolean canRedo(ValueWithTTL current) {
+            return matches(current, oldMiddle);
+        }
+
+        // The middle is compared exactly; the prefix and suffix, which the delta does not keep, by a 64-bit hash.
+        private boolean matches(ValueWithTTL current, String middle) {
+            if (current == null) {
+                return false;
+            }
+            String value = current.getValue();
+            return value.length() == prefixLength + middle.length() + suffixLength
+                    && value.regionMatches(prefixLength, middle, 0, middle.length())
+                    && contextHash(value, prefixLength, suffixLength) == contextHash;
+        }
+
+        // FNV-1a over the characters of the prefix and suffix, which the old and new values share.
+        private static long contextHash(String value, int prefixLength, int suffixLength) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < prefixLength; i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            for (int i = value.length() - suffixLength; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        private String splice(String base, String middle) {
+            return base.substring(0, prefixLength) + middle + base.substring(base.length() - suffixLength);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return OPERATION_OVERHEAD_BYTES + 2L * key.length() + 80 + 2L * (oldMiddle.length() + newMiddle.length());
+        }
+
+        @Override
+        public String toString() {
+            return "DeltaOperation{" +
+                    "command=" + command +
+                    ", key='" + key + '\'' +
+                    ", prefixLength=" + prefixLength +
+                    ", suffixLength=" + suffixLength +
+                    ", oldMiddle='" + oldMiddle + '\'' +
+                    ", newMiddle='" + newMiddle + '\'' +
+                    '}';
+        }
+    }
+
+    /**
+     * One history entry for a multi-key call, so a single undo reverts the whole batch.
+     */
+    private static class CompoundOperation extends Operation {
+        private final List<Operation> parts;
+        private final long estimatedBytes;
+
+        CompoundOperation(List<Operation> parts) {
+            super(null, null, null, null);
+            this.parts = parts;
+            long bytes = OPERATION_OVERHEAD_BYTES;
+            for (Operation part : parts) {
+                bytes += part.estimatedBytes();
+            }
+            this.estimatedBytes = bytes;
+        }
+
+        @Override
+        List<Operation> parts() {
+            return parts;
+        }
+
+        @Override
+        long estimatedBytes() {
+            return estimatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "CompoundOperation{" +
+                    "parts=" + parts +
+                    '}';
+        }
+    }
+
+    /**
+     * Limits for the undo/redo log. maxOperations and maxBytes of 0 mean unlimited; once either limit is
+     * hit the oldest undo entries are dropped. A disabled history records nothing and undo/redo return false.
+     * With delta encoding an update keeps only the changed span of the value, which is rebuilt from the key's
+     * current value; if that value has since expired or been removed the history is cleared and undo/redo
+     * return false.
+     */
+    public static class HistoryConfig {
+        private final boolean enabled;
+        private final int maxOperations;
+        private final long maxBytes;
+        private final boolean deltaEncoding;
+
+        private HistoryConfig(boolean enabled, int maxOperations, long maxBytes, boolean deltaEncoding) {
+            if (maxOperations < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("History limits cannot be negative");
+            }
+            this.enabled = enabled;
+            this.maxOperations = maxOperations;
+            this.maxBytes = maxBytes;
+            this.deltaEncoding = deltaEncoding;
+        }
+
+        public static HistoryConfig unbounded() {
+            return new HistoryConfig(true, 0, 0, false);
+        }
+
+        public static HistoryConfig bounded(int maxOperations, long maxBytes) {
+            return new HistoryConfig(true, maxOperations, maxBytes, false);
+        }
+
+        public static HistoryConfig disabled() {
+            return new HistoryConfig(false, 0, 0, false);
+        }
+
+        public HistoryConfig withDeltaEncoding() {
+            return new HistoryConfig(enabled, maxOperations, maxBytes, true);
+        }
+
+        @Override
+        public String toString() {
+            return "HistoryConfig{" +
+                    "enabled=" + enabled +
+                    ", maxOperations=" + maxOperations +
+                    ", maxBytes=" + maxBytes +
+                    ", deltaEncoding=" + deltaEncoding +
+                    '}';
+        }
+    }
+
+    /**
+     * Undo and redo entries in one ring buffer: positions [0, undoCount) can be undone, newest last, and
+     * [undoCount, size) can be redone. Logging a new operation truncates the redo tail; going over a limit
+     * drops from the oldest end. Guarded by historyLock.
+     */
+    private static class HistoryLog {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final HistoryConfig config;
+        private Operation[] ring;
+        private int head;
+        private int size;
+        private int undoCount;
+        private long bytes;
+
+        HistoryLog(HistoryConfig config) {
+            this.config = config;
+            int capacity = config.maxOperations > 0 ? Math.min(config.maxOperations, INITIAL_CAPACITY) : INITIAL_CAPACITY;
+            this.ring = new Operation[capacity];
+        }
+
+        boolean isEnabled() {
+            return config.enabled;
+        }
+
+        Operation record(Command command, String key, ValueWithTTL oldValue, ValueWithTTL newValue) {
+            if (!config.enabled) {
+                return null;
+            }
+            Operation operation = newOperation(command, key, oldValue, newValue);
+            push(operation);
+            return operation;
+        }
+
+        void recordBatch(List<Operation> parts) {
+            if (config.enabled && !parts.isEmpty()) {
+                push(parts.size() == 1 ? parts.get(0) : new CompoundOperation(parts));
+            }
+        }
+
+        Operation newOperation(Command command, String key, ValueWithTTL oldValue, ValueWithTTL newValue) {
+            return config.deltaEncoding
+                    ? DeltaOperation.encode(command, key, oldValue, newValue)
+                    : new Operation(command, key, oldValue, newValue);
+        }
+
+        Operation peekUndo() {
+            return undoCount == 0 ? null : at(undoCount - 1);
+        }
+
+        Operation peekRedo() {
+            return undoCount == size ? null : at(undoCount);
+        }
+
+        void markUndone() {
+            undoCount--;
+        }
+
+        void markRedone() {
+            undoCount++;
+        }
+
+        int undoSize() {
+            return undoCount;
+        }
+
+        int redoSize() {
+            return size - undoCount;
+        }
+
+        long estimatedBytes() {
+            return bytes;
+        }
+
+        void clear() {
+            Arrays.fill(ring, null);
+            head = 0;
+            size = 0;
+            undoCount = 0;
+            bytes = 0;
+        }
+
+        private void push(Operation operation) {
+            while (size > undoCount) {
+                size--;
+                bytes -= at(size).estimatedBytes();
+                ring[slot(size)] = null;
+            }
+            if (config.maxOperations > 0 && size == config.maxOperations) {
+                dropOldest();
+            } else if (size == ring.length) {
+                grow();
+            }
+            ring[slot(size)] = operation;
+            size++;
+            undoCount++;
+            bytes += operation.estimatedBytes();
+            while (config.maxBytes > 0 && bytes > config.maxBytes && size > 1) {
+                dropOldest();
+            }
+        }
+
+        private void dropOldest() {
+            bytes -= ring[head].estimatedBytes();
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            undoCount--;
+        }
+
+        private void grow() {
+            int capacity = ring.length * 2;
+            if (config.maxOperations > 0) {
+                capacity = Math.min(capacity, config.maxOperations);
+            }
+            Operation[] larger = new Operation[capacity];
+            for (int i = 0; i < size; i++) {
+                larger[i] = at(i);
+            }
+            ring = larger;
+            head = 0;
+        }
+
+        private Operation at(int position) {
+            return ring[slot(position)];
+        }
+
+        private int slot(int position) {
+            return (head + position) % ring.length;
+        }
+    }
+
+    public static class ScanPage {
+        private final List<String> keys;
+        private final String nextCursor;
+
+        ScanPage(List<String> keys, String nextCursor) {
+            this.keys = keys;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean hasMore() {
+            return nextCursor != null;
+        }
+
+        @Override
+        public String toString() {
+            return "ScanPage{" +
+                    "keys=" + keys +
+                    ", nextCursor='" + nextCursor + '\'' +
+                    '}';
+        }
+    }
+
+    /**
+     * OFF_HEAP keeps value bytes in direct-buffer slabs; the map then holds only fixed-size entries carrying the
+     * slab position and the expiry, so the collector never has to trace value data.
+     */
+    public enum StorageMode {
+        HEAP,
+        OFF_HEAP
+    }
+
+    /**
+     * Entry whose value lives in a slab. Expiry stays on the heap object so TTL checks, scans and the expiry
+     * wheel never touch slab memory. The chunk's position and the value's length are packed into one field, so
+     * an overwrite that moves the value to another chunk swaps both at once. A freed chunk may be reused by
+     * another value, so a lock-free reader copies the bytes and then confirms that the entry was neither
+     * released nor overwritten meanwhile.
+     */
+    private static class OffHeapValue extends ValueWithTTL {
+        private static final int LENGTH_BITS = 21;
+        private static final int OFFSET_BITS = 24;
+
+        private final SlabAllocator allocator;
+        // slab << 45 | offset << 21 | length
+        private volatile long location;
+        private volatile boolean released;
+
+        OffHeapValue(SlabAllocator allocator, long chunk, int length, long expiryTimestamp) {
+            super(null, expiryTimestamp);
+            this.allocator = allocator;
+            this.location = locate(chunk, length);
+        }
+
+        private static long locate(long chunk, int length) {
+            return (chunk >>> 32) << (OFFSET_BITS + LENGTH_BITS) | (chunk & 0xFFFFFFFFL) << LENGTH_BITS | length;
+        }
+
+        static int slab(long location) {
+            return (int) (location >>> (OFFSET_BITS + LENGTH_BITS));
+        }
+
+        static int offset(long location) {
+            return (int) (location >>> LENGTH_BITS) & ((1 << OFFSET_BITS) - 1);
+        }
+
+        static int length(long location) {
+            return (int) location & ((1 << LENGTH_BITS) - 1);
+        }
+
+        // Null if the chunk was released while being read, or if clock is given and the entry has expired.
+        private String read(TimeSource clock) {
+            while (true) {
+                int before = version();
+                if (released) {
+                    return null;
+                }
+                long at = location;
+                long expiry = getExpiryTimestamp();
+                byte[] bytes = new byte[length(at)];
+                allocator.slab(slab(at)).get(offset(at), bytes);
+                VarHandle.acquireFence();
+                if (released) {
+                    return null;
+                }
+                if (unchangedSince(before)) {
+                    return clock != null && expiry != -1 && clock.millis() > expiry
+                            ? null : new String(bytes, StandardCharsets.UTF_8);
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        @Override
+        String getValue() {
+            return read(null);
+        }
+
+        @Override
+        String valueIfLive(TimeSource clock) {
+            return hasExpired(clock) ? null : read(clock);
+        }
+
+        @Override
+        ValueWithTTL stableCopy() {
+            while (true) {
+                int before = version();
+                long expiry = getExpiryTimestamp();
+                String value = read(null);
+                if (value == null || unchangedSince(before)) {
+                    return value == null ? null : new ValueWithTTL(value, expiry);
+                }
+            }
+        }
+
+        @Override
+        boolean isReleased() {
+            return released;
+        }
+
+        @Override
+        long estimatedValueBytes() {
+            return length(location);
+        }
+
+        /**
+         * Writes newValue into the current chunk when it needs the same chunk size, otherwise into a newly
+         * allocated chunk, freeing the old one once readers can no longer be directed to it. Returns false if
+         * newValue is too large for any chunk.
+         */
+        @Override
+        boolean overwrite(String newValue, long newExpiryTimestamp) {
+            byte[] bytes = newValue.getBytes(StandardCharsets.UTF_8);
+            int shift = SlabAllocator.chunkShift(bytes.length);
+            if (shift > SlabAllocator.MAX_CHUNK_SHIFT) {
+                return false;
+            }
+            long old = location;
+            boolean moves = shift != SlabAllocator.chunkShift(length(old));
+            long chunk = moves ? allocator.allocate(shift) : (long) slab(old) << 32 | offset(old);
+            if (moves) {
+                allocator.slab((int) (chunk >>> 32)).put((int) chunk, bytes);
+            }
+            beginOverwrite();
+            // Keeps the byte writes below from becoming visible before the version does.
+            VarHandle.storeStoreFence();
+            if (!moves) {
+                allocator.slab(slab(old)).put(offset(old), bytes);
+            }
+            location = locate(chunk, bytes.length);
+            overwriteExpiry(newExpiryTimestamp);
+            endOverwrite();
+            if (moves) {
+                allocator.free(slab(old), offset(old), length(old));
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+
+        @Override
+        public String toString() {
+            long at = location;
+            return "OffHeapValue{" +
+                    "slab=" + slab(at) +
+                    ", offset=" + offset(at) +
+                    ", length=" + length(at) +
+                    ", expiryTimestamp=" + getExpiryTimestamp() +
+                    '}';
+        }
+    }
+
+    /**
+     * Hands out power-of-two chunks (16 bytes to 1 MB) carved from 16 MB direct buffers, recycling freed chunks
+     * through per-size free lists. Values too large for a chunk stay on the heap. Called under a stripe lock;
+     * the allocator's own monitor is never held while taking any other lock.
+     */
+    private static class SlabAllocator {
+        private static final int SLAB_BYTES = 16 << 20;
+        private static final int MIN_CHUNK_SHIFT = 4;
+        private static final int MAX_CHUNK_SHIFT = 20;
+
+        private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+        private final long[][] freeChunks = new long[MAX_CHUNK_SHIFT + 1][];
+        private final int[] freeCounts = new int[MAX_CHUNK_SHIFT + 1];
+        private int bumpOffset = SLAB_BYTES;
+        private long usedBytes;
+
+        SlabAllocator() {
+            for (int shift = MIN_CHUNK_SHIFT; shift <= MAX_CHUNK_SHIFT; shift++) {
+                freeChunks[shift] = new long[16];
+            }
+        }
+
+        ByteBuffer slab(int index) {
+            return slabs[index];
+        }
+
+        ValueWithTTL store(ValueWithTTL value) {
+            if (value instanceof OffHeapValue) {
+                return value;
+            }
+            byte[] bytes = value.getValue().getBytes(StandardCharsets.UTF_8);
+            int shift = chunkShift(bytes.length);
+            if (shift > MAX_CHUNK_SHIFT) {
+                return value;
+            }
+            long chunk = allocate(shift);
+            slabs[(int) (chunk >>> 32)].put((int) chunk, bytes);
+            return new OffHeapValue(this, chunk, bytes.length, value.getExpiryTimestamp());
+        }
+
+        synchronized void free(OffHeapValue value) {
+            value.released = true;
+            long location = value.location;
+            free(OffHeapValue.slab(location), OffHeapValue.offset(location), OffHeapValue.length(location));
+        }
+
+        synchronized void free(int slab, int offset, int length) {
+            int shift = chunkShift(length);
+            if (freeCounts[shift] == freeChunks[shift].length) {
+                freeChunks[shift] = Arrays.copyOf(freeChunks[shift], freeCounts[shift] * 2);
+            }
+            freeChunks[shift][freeCounts[shift]++] = ((long) slab << 32) | offset;
+            usedBytes -= 1L << shift;
+        }
+
+        synchronized long reservedBytes() {
+            return (long) slabs.length * SLAB_BYTES;
+        }
+
+        synchronized long usedBytes() {
+            return usedBytes;
+        }
+
+        synchronized long allocate(int shift) {
+            usedBytes += 1L << shift;
+            if (freeCounts[shift] > 0) {
+                return freeChunks[shift][--freeCounts[shift]];
+            }
+            int size = 1 << shift;
+            if (bumpOffset + size > SLAB_BYTES) {
+                ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+                grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_BYTES);
+                slabs = grown;
+                bumpOffset = 0;
+            }
+            long chunk = ((long) (slabs.length - 1) << 32) | bumpOffset;
+            bumpOffset += size;
+            return chunk;
+        }
+
+        static int chunkShift(int length) {
+            int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+            return Math.max(shift, MIN_CHUNK_SHIFT);
+        }
+    }
+
+    /**
+     * Clock used for every TTL computation and check.
+     */
+    public interface TimeSource {
+        TimeSource SYSTEM = System::currentTimeMillis;
+
+        long millis();
+    }
+
+    /**
+     * Serves the time from a volatile field refreshed by a daemon ticker thread, so TTL checks on the hot
+     * path cost a memory read instead of a System.currentTimeMillis call. Expiry is only as precise as the
+     * resolution.
+     */
+    public static class CachedTimeSource implements TimeSource, AutoCloseable {
+        private volatile long now = System.currentTimeMillis();
+        private final ScheduledExecutorService ticker;
+
+        public CachedTimeSource(long resolutionMillis) {
+            if (resolutionMillis <= 0) {
+                throw new IllegalArgumentException("resolutionMillis must be positive");
+            }
+            this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "InMemoryDataStore-clock");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(() -> now = System.currentTimeMillis(),
+                    resolutionMillis, resolutionMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        @Override
+        public void close() {
+            ticker.shutdownNow();
+        }
+    }
+
+    // Time that only moves when told to; for tests.
+    public static class ManualTimeSource implements TimeSource {
+        private volatile long now;
+
+        public ManualTimeSource(long startMillis) {
+            this.now = startMillis;
+        }
+
+        public void advance(long millis) {
+            now += millis;
+        }
+
+        public void set(long millis) {
+            now = millis;
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+    }
+
+    /**
+     * LRU approximates least-recently-used with a CLOCK sweep: reads only set a reference bit on the entry and
+     * the sweep gives referenced keys a second chance. TINY_LFU uses the same sweep to pick a victim but only
+     * admits a newly inserted key if a frequency sketch says it is used at least as often as that victim;
+     * otherwise the new key is the one evicted.
+     */
+    public enum EvictionPolicy {
+        NONE,
+        LRU,
+        TINY_LFU
+    }
+
+    /**
+     * Capacity limits; 0 means no limit on that dimension. Bytes are the same estimate used for expiry stats.
+     */
+    public static class EvictionConfig {
+        private final EvictionPolicy policy;
+        private final long maxEntries;
+        private final long maxBytes;
+
+        private EvictionConfig(EvictionPolicy policy, long maxEntries, long maxBytes) {
+            if (maxEntries < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("Capacity limits cannot be negative");
+            }
+            if (policy != EvictionPolicy.NONE && maxEntries == 0 && maxBytes == 0) {
+                throw new IllegalArgumentException("An eviction policy needs maxEntries or maxBytes");
+            }
+            this.policy = Objects.requireNonNull(policy, "Policy cannot be null");
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        public static EvictionConfig unbounded() {
+            return new EvictionConfig(EvictionPolicy.NONE, 0, 0);
+        }
+
+        public static EvictionConfig bounded(EvictionPolicy policy, long maxEntries, long maxBytes) {
+            return new EvictionConfig(policy, maxEntries, maxBytes);
+        }
+
+        @Override
+        public String toString() {
+            return "EvictionConfig{" +
+                    "policy=" + policy +
+                    ", maxEntries=" + maxEntries +
+                    ", maxBytes=" + maxBytes +
+                    '}';
+        }
+    }
+
+    public static class CacheStats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long rejections;
+        private final long entries;
+        private final long estimatedBytes;
+
+        CacheStats(long hits, long misses, long evictions, long rejections, long entries, long estimatedBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.entries = entries;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        // New keys evicted straight away because the admission policy preferred the existing victim.
+        public long getRejections() {
+            return rejections;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats{" +
+                    "hits=" + hits +
+                    ", misses=" + misses +
+                    ", hitRate=" + String.format("%.3f", getHitRate()) +
+                    ", evictions=" + evictions +
+                    ", rejections=" + rejections +
+                    ", entries=" + entries +
+                    ", estimatedBytes=" + estimatedBytes +
+                    '}';
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit-range counters (stored in bytes) over four hashed rows. Updates are plain,
+     * unsynchronized writes: a lost increment only makes the estimate slightly lower. All counters are halved
+     * once the number of increments reaches ten times the width, so old popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.min(Math.max(expectedEntries, 16), 1 << 24) - 1) << 1;
+            this.table = new byte[width * SEEDS.length];
+            this.mask = width - 1;
+            this.sampleSize = width * 10;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = indexOf(hash, row);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, table[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+            return row * (mask + 1) + ((h ^ (h >>> 15)) & mask);
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (byte) (table[i] >>> 1);
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int hash) {
+            int h = hash * 0x85EBCA6B;
+            return h ^ (h >>> 13);
+        }
+    }
+
+    private static class ExpiryTask {
+        final String key;
+        final long expiryTimestamp;
+
+        ExpiryTask(String key, long expiryTimestamp) {
+            this.key = key;
+            this.expiryTimestamp = expiryTimestamp;
+        }
+    }
+
+    /**
+     * Hierarchical timing wheel: four levels of 64 slots, each level covering 64x the span of the one below.
+     * A task sits in the lowest level whose higher digits match the current tick and is cascaded down as time
+     * reaches its slot, so scheduling and expiring are O(1) regardless of how many keys carry a TTL.
+     * Only ever touched from the scheduler thread.
+     */
+    private static class TimingWheel {
+        private static final int WHEEL_BITS = 6;
+        private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+        private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+        private static final int LEVELS = 4;
+
+        private final long tickMillis;
+        private final long startMillis;
+        private final List<List<ArrayDeque<ExpiryTask>>> levels = new ArrayList<>();
+        private final ArrayDeque<ExpiryTask> overflow = new ArrayDeque<>();
+        private long currentTick;
+
+        TimingWheel(long tickMillis, long startMillis) {
+            this.tickMillis = tickMillis;
+            this.startMillis = startMillis;
+            for (int level = 0; level < LEVELS; level++) {
+                List<ArrayDeque<ExpiryTask>> slots = new ArrayList<>(WHEEL_SIZE);
+                for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                    slots.add(new ArrayDeque<>());
+                }
+                levels.add(slots);
+            }
+        }
+
+        void add(ExpiryTask task, Deque<ExpiryTask> due) {
+            long deadlineTick = Math.floorDiv(task.expiryTimestamp - startMillis + tickMillis - 1, tickMillis);
+            if (deadlineTick <= currentTick) {
+                due.add(task);
+                return;
+            }
+            for (int level = 0; level < LEVELS; level++) {
+                int higherDigits = WHEEL_BITS * (level + 1);
+                if ((deadlineTick >>> higherDigits) == (currentTick >>> higherDigits)) {
+                    int slot = (int) ((deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                    levels.get(level).get(slot).add(task);
+                    return;
+                }
+            }
+            overflow.add(task);
+        }
+
+        void advanceTo(long nowMillis, Deque<ExpiryTask> due) {
+            long targetTick = Math.floorDiv(nowMillis - startMillis, tickMillis);
+            while (currentTick < targetTick) {
+                currentTick++;
+                if ((currentTick & ((1L << (WHEEL_BITS * LEVELS)) - 1)) == 0) {
+                    reschedule(overflow, due);
+                }
+                for (int level = LEVELS - 1; level >= 1; level--) {
+                    if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                        int slot = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                        reschedule(levels.get(level).get(slot), due);
+                    }
+                }
+                ArrayDeque<ExpiryTask> slot = levels.get(0).get((int) (currentTick & WHEEL_MASK));
+                due.addAll(slot);
+                slot.clear();
+            }
+        }
+
+        private void reschedule(ArrayDeque<ExpiryTask> tasks, Deque<ExpiryTask> due) {
+            List<ExpiryTask> cascading = new ArrayList<>(tasks);
+            tasks.clear();
+            for (ExpiryTask task : cascading) {
+                add(task, due);
+            }
+        }
+    }
+
+    public static class ExpiryStats {
+        private final long expiredLastTick;
+        private final long totalExpired;
+        private final long bytesReclaimed;
+        private final int pending;
+
+        ExpiryStats(long expiredLastTick, long totalExpired, long bytesReclaimed, int pending) {
+            this.expiredLastTick = expiredLastTick;
+            this.totalExpired = totalExpired;
+            this.bytesReclaimed = bytesReclaimed;
+            this.pending = pending;
+        }
+
+        public long getExpiredLastTick() {
+            return expiredLastTick;
+        }
+
+        public long getTotalExpired() {
+            return totalExpired;
+        }
+
+        public long getBytesReclaimed() {
+            return bytesReclaimed;
+        }
+
+        public int getPending() {
+            return pending;
+        }
+
+        @Override
+        public String toString() {
+            return "ExpiryStats{" +
+                    "expiredLastTick=" + expiredLastTick +
+                    ", totalExpired=" + totalExpired +
+                    ", bytesReclaimed=" + bytesReclaimed +
+                    ", pending=" + pending +
+                    '}';
+        }
+    }
+
+    /**
+     * Background reclaimer. Writers hand over (key, expiry) pairs through a lock-free queue; the scheduler
+     * thread moves them into the wheel and removes at most maxExpirationsPerTick due keys per tick.
+     * A task is stale, and skipped, once the key has been overwritten with a different expiry.
+     */
+    private class ExpiryScheduler {
+        private final TimingWheel wheel;
+        private final int maxExpirationsPerTick;
+        private final Queue<ExpiryTask> incoming = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ExpiryTask> due = new ArrayDeque<>();
+        private final List<ExpiryTask> notYetExpired = new ArrayList<>();
+        private final ScheduledExecutorService executor;
+        private final LongAdder totalExpired = new LongAdder();
+        private final LongAdder bytesReclaimed = new LongAdder();
+        private volatile long expiredLastTick;
+        private volatile int pending;
+
+        ExpiryScheduler(long tickMillis, int maxExpirationsPerTick) {
+            this.wheel = new TimingWheel(tickMillis, timeSource.millis());
+            this.maxExpirationsPerTick = maxExpirationsPerTick;
+            this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "InMemoryDataStore-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void schedule(String key, long expiryTimestamp) {
+            incoming.add(new ExpiryTask(key, expiryTimestamp));
+        }
+
+        void tick() {
+            for (ExpiryTask task : notYetExpired) {
+                wheel.add(task, due);
+            }
+            notYetExpired.clear();
+            ExpiryTask task;
+            while ((task = incoming.poll()) != null) {
+                wheel.add(task, due);
+            }
+            wheel.advanceTo(timeSource.millis(), due);
+
+            long expired = 0;
+            for (int examined = 0; examined < maxExpirationsPerTick && (task = due.poll()) != null; examined++) {
+                ValueWithTTL entry = store.get(task.key);
+                if (entry == null || entry.getExpiryTimestamp() != task.expiryTimestamp) {
+                    continue;
+                }
+                if (!entry.hasExpired(timeSource)) {
+                    notYetExpired.add(task);
+                    continue;
+                }
+                if (expire(task.key, entry)) {
+                    expired++;
+                    bytesReclaimed.add(estimatedBytes(task.key, entry));
+                }
+            }
+            totalExpired.add(expired);
+            expiredLastTick = expired;
+            pending = due.size() + notYetExpired.size();
+        }
+
+        ExpiryStats stats() {
+            return new ExpiryStats(expiredLastTick, totalExpired.sum(), bytesReclaimed.sum(), pending);
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    // Ordinals are written to the write-ahead log, so new commands must be appended at the end.
+    // EXPIRE is only ever delivered to watchers; expired keys need no log record.
+    public enum Command {
+        SET,
+        UPDATE,
+        DELETE,
+        EXPIRE
+    }
+
+    /**
+     * A change delivered to watchers. value is the key's new value for SET and UPDATE and null otherwise.
+     */
+    public static class ChangeEvent {
+        private final Command command;
+        private final String key;
+        private final String value;
+
+        ChangeEvent(Command command, String key, String value) {
+            this.command = command;
+            this.key = key;
+            this.value = value;
+        }
+
+        public Command getCommand() {
+            return command;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeEvent{" +
+                    "command=" + command +
+                    ", key='" + key + '\'' +
+                    ", value='" + value + '\'' +
+                    '}';
+        }
+    }
+
+    /**
+     * Bounded queue of changes to one key or to every key under a prefix. Writers publish while holding the
+     * key's stripe lock, so events for a key arrive in the order the writes were applied, but they never wait
+     * on a slow consumer: when the queue is full the event is dropped and counted. A consumer that sees
+     * getDroppedEvents() grow has missed changes and should re-read the keys it cares about.
+     */
+    public class Watch implements AutoCloseable {
+        private final String target;
+        private final boolean prefix;
+        private final ArrayBlockingQueue<ChangeEvent> events;
+        private final LongAdder dropped = new LongAdder();
+        private volatile boolean closed;
+
+        private Watch(String target, boolean prefix, int capacity) {
+            this.target = target;
+            this.prefix = prefix;
+            this.events = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private void offer(ChangeEvent event) {
+            if (!events.offer(event)) {
+                dropped.increment();
+            }
+        }
+
+        public ChangeEvent poll() {
+            return events.poll();
+        }
+
+        public ChangeEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return events.poll(timeout, unit);
+        }
+
+        public int drainTo(Collection<? super ChangeEvent> sink, int maxEvents) {
+            return events.drainTo(sink, maxEvents);
+        }
+
+        public long getDroppedEvents() {
+            return dropped.sum();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            unwatch(this);
+        }
+    }
+
+    /**
+     * ALWAYS returns from a write only after its log record is forced to disk, sharing one fsync among
+     * writers that arrive while another flush is in progress. INTERVAL forces every FSYNC_INTERVAL_MILLIS
+     * and NEVER leaves flushing to the OS, so both can lose the most recent writes on a crash.
+     */
+    public enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    }
+
+    /**
+     * Append-only log of applied writes, split into numbered segments. Writers encode records into an in-memory
+     * buffer under appendLock; whoever flushes swaps the buffer out and writes it with a single FileChannel
+     * write, so concurrent writers are committed as a group. Rolling to a new segment marks the point a
+     * snapshot covers: everything in earlier segments is already reflected in the snapshot.
+     */
+    private static class WriteAheadLog {
+        private static final int BUFFER_BYTES = 1 << 20;
+        private static final String SEGMENT_PREFIX = "wal-";
+        private static final String SEGMENT_SUFFIX = ".log";
+        private static final String SNAPSHOT_PREFIX = "snapshot-";
+        private static final String SNAPSHOT_SUFFIX = ".snap";
+
+        private final Path directory;
+        private final FsyncPolicy policy;
+        private final Object appendLock = new Object();
+        private final Object flushLock = new Object();
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer active = ByteBuffer.allocate(BUFFER_BYTES);
+        private ByteBuffer spare = ByteBuffer.allocate(BUFFER_BYTES);
+        private long appendedSequence;
+        private volatile long durableSequence;
+        // The first failed flush or background snapshot; once set, nothing more is written or acknowledged.
+        private volatile Exception failure;
+        private FileChannel channel;
+        private long segment;
+
+        WriteAheadLog(Path directory, FsyncPolicy policy, long segment) throws IOException {
+            this.directory = directory;
+            this.policy = policy;
+            this.segment = segment;
+            this.channel = openSegment(segment);
+        }
+
+        long append(Command command, String key, ValueWithTTL value) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value == null ? null : value.getValue().getBytes(StandardCharsets.UTF_8);
+            long expiryTimestamp = value == null ? -1 : value.getExpiryTimestamp();
+            int recordBytes = recordLength(keyBytes, valueBytes);
+            while (true) {
+                synchronized (appendLock) {
+                    if (active.remaining() >= recordBytes || active.position() == 0) {
+                        if (active.capacity() < recordBytes) {
+                            active = ByteBuffer.allocate(recordBytes);
+                        }
+                        writeRecord(active, crc, command, keyBytes, valueBytes, expiryTimestamp);
+                        return ++appendedSequence;
+                    }
+                }
+                flush(false);
+            }
+        }
+
+        void awaitDurable(long sequence) {
+            checkHealthy();
+            if (policy == FsyncPolicy.ALWAYS && durableSequence < sequence) {
+                flush(true);
+            }
+        }
+
+        void fail(Exception e) {
+            synchronized (flushLock) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        void checkHealthy() {
+            Exception failed = failure;
+            if (failed != null) {
+                throw new IllegalStateException("Persistence failed; later writes are not durable", failed);
+            }
+        }
+
+        void flush(boolean force) {
+            synchronized (flushLock) {
+                // A failed write may have left a torn record, and anything appended after it would not replay.
+                checkHealthy();
+                ByteBuffer pending;
+                long sequence;
+                synchronized (appendLock) {
+                    pending = active;
+                    sequence = appendedSequence;
+                    if (pending.position() > 0) {
+                        active = spare.capacity() >= BUFFER_BYTES ? spare : ByteBuffer.allocate(BUFFER_BYTES);
+                    }
+                }
+                try {
+                    if (pending.position() > 0) {
+                        pending.flip();
+                        while (pending.hasRemaining()) {
+                            channel.write(pending);
+                        }
+                        pending.clear();
+                        spare = pending;
+                    }
+                    if (force && durableSequence < sequence) {
+                        channel.force(false);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                    throw new UncheckedIOException("Failed to write the write-ahead log", e);
+                }
+                if (force || policy != FsyncPolicy.ALWAYS) {
+                    durableSequence = Math.max(durableSequence, sequence);
+                }
+            }
+        }
+
+        // Flushes the current segment and starts the next one; returns the new segment number.
+        long roll() throws IOException {
+            synchronized (flushLock) {
+                flush(true);
+                channel.close();
+                segment++;
+                channel = openSegment(segment);
+                return segment;
+            }
+        }
+
+        void close() throws IOException {
+            synchronized (flushLock) {
+                try {
+                    flush(policy != FsyncPolicy.NEVER);
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+
+        private FileChannel openSegment(long number) throws IOException {
+            return FileChannel.open(segmentPath(directory, number),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        static Path segmentPath(Path directory, long number) {
+            return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        }
+
+        static Path snapshotPath(Path directory, long number) {
+            return directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX));
+        }
+
+        // Segment or snapshot numbers present in the directory, ascending.
+        static List<Long> list(Path directory, String prefix, String suffix) throws IOException {
+            List<Long> numbers = new ArrayList<>();
+            try (Stream<Path> files = Files.list(directory)) {
+                files.map(path -> path.getFileName().toString())
+                        .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                        .forEach(name -> numbers.add(Long.parseLong(
+                                name.substring(prefix.length(), name.length() - suffix.length()))));
+            }
+            Collections.sort(numbers);
+            return numbers;
+        }
+
+        static int recordLength(byte[] keyBytes, byte[] valueBytes) {
+            return 4 + 1 + 8 + 4 + keyBytes.length + 4 + (valueBytes == null ? 0 : valueBytes.length) + 4;
+        }
+
+        // [body length][command][expiry][key length][key][value length or -1][value][crc32 of body]
+        static void writeRecord(ByteBuffer out, CRC32 crc, Command command, byte[] keyBytes, byte[] valueBytes,
+                                long expiryTimestamp) {
+            int start = out.position();
+            out.putInt(recordLength(keyBytes, valueBytes) - 8);
+            out.put((byte) command.ordinal());
+            out.putLong(expiryTimestamp);
+            out.putInt(keyBytes.length);
+            out.put(keyBytes);
+            out.putInt(valueBytes == null ? -1 : valueBytes.length);
+            if (valueBytes != null) {
+                out.put(valueBytes);
+            }
+            ByteBuffer body = out.duplicate();
+            body.position(start + 4).limit(out.position());
+            crc.reset();
+            crc.update(body);
+            out.putInt((int) crc.getValue());
+        }
+
+        interface RecordHandler {
+            void accept(Command command, String key, String value, long expiryTimestamp);
+        }
+
+        // Replays records until the end of the file or the first torn or corrupt record.
+        static void read(Path file, RecordHandler handler) throws IOException {
+            CRC32 crc = new CRC32();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                while (true) {
+                    int bodyLength;
+                    byte[] body;
+                    int checksum;
+                    try {
+                        bodyLength = in.readInt();
+                        if (bodyLength < 17) {
+                            return;
+                        }
+                        body = new byte[bodyLength];
+                        in.readFully(body);
+                        checksum = in.readInt();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    crc.reset();
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum) {
+                        return;
+                    }
+                    ByteBuffer record = ByteBuffer.wrap(body);
+                    Command command = Command.values()[record.get()];
+                    long expiryTimestamp = record.getLong();
+                    int keyLength = record.getInt();
+                    String key = new String(body, record.position(), keyLength, StandardCharsets.UTF_8);
+                    record.position(record.position() + keyLength);
+                    int valueLength = record.getInt();
+                    String value = valueLength < 0
+                            ? null
+                            : new String(body, record.position(), valueLength, StandardCharsets.UTF_8);
+                    handler.accept(command, key, value, expiryTimestamp);
+                }
+            }
+        }
+    }
+
+    public void set(String key, String value) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        Objects.requireNonNull(value, "Value cannot be null");
+        setInternal(key, value, -1);
+    }
+
+    public void setWithTTL(String key, String value, long ttlInMillis) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        Objects.requireNonNull(value, "Value cannot be null");
+        long expiryTimestamp = (ttlInMillis > 0) ? timeSource.millis() + ttlInMillis : -1;
+        setInternal(key, value, expiryTimestamp);
+    }
+
+    private void setInternal(String key, String value, long expiryTimestamp) {
+        ReentrantLock lock = lockFor(key);
+        long walSequence;
+        boolean inserted;
+        lock.lock();
+        try {
+            ValueWithTTL current = store.get(key);
+            boolean expired = current != null && current.hasExpired(timeSource);
+            ValueWithTTL oldValue = expired ? null : retained(current);
+            inserted = current == null;
+            if (expired) {
+                // Watchers see the lazily expired value go before the new one arrives.
+                publish(Command.EXPIRE, key, null);
+            }
+            ValueWithTTL newValue = writeValue(key, current, value, expiryTimestamp);
+            logOperation(Command.SET, key, oldValue, newValue);
+            walSequence = commit(Command.SET, key, newValue);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(walSequence);
+        evictIfNeeded(inserted ? key : null);
+    }
+
+    public String get(String key) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        if (mode == ConcurrencyMode.STRIPED) {
+            return getInternal(key);
+        }
+        ReentrantLock lock = stripes[0];
+        lock.lock();
+        try {
+            return getInternal(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String getInternal(String key) {
+        while (true) {
+            ValueWithTTL entry = store.get(key);
+
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+
+            String value = entry.valueIfLive(timeSource);
+            if (value == null) {
+                if (entry.isReleased()) {
+                    continue;
+                }
+                expire(key, entry);
+                misses.increment();
+                return null;
+            }
+
+            hits.increment();
+            recordAccess(key, entry);
+            return value;
+        }
+    }
+
+    public boolean delete(String key) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        ReentrantLock lock = lockFor(key);
+        long walSequence;
+        lock.lock();
+        try {
+            ValueWithTTL current = store.get(key);
+            if (current == null) {
+                return false;
+            }
+            if (current.hasExpired(timeSource)) {
+                // Nothing visible is deleted; the entry just expires, which needs no log record.
+                removeEntry(key);
+                publish(Command.EXPIRE, key, null);
+                return false;
+            }
+            ValueWithTTL oldValue = retained(current);
+            removeEntry(key);
+            walSequence = commit(Command.DELETE, key, null);
+            logOperation(Command.DELETE, key, oldValue, null);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(walSequence);
+        return true;
+    }
+
+    public boolean update(String key, String newValue) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        Objects.requireNonNull(newValue, "Value cannot be null");
+        return updateInternal(key, newValue, null);
+    }
+
+    public boolean updateWithTTL(String key, String newValue, long ttlInMillis) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        Objects.requireNonNull(newValue, "Value cannot be null");
+        return updateInternal(key, newValue, ttlInMillis);
+    }
+
+    private boolean updateInternal(String key, String value, Long newTtlInMillis) {
+        ReentrantLock lock = lockFor(key);
+        long walSequence;
+        lock.lock();
+        try {
+            ValueWithTTL oldValue = store.get(key);
+            if (oldValue == null) {
+                return false;
+            }
+            if (oldValue.hasExpired(timeSource)) {
+                removeEntry(key);
+                publish(Command.EXPIRE, key, null);
+                return false;
+            }
+            oldValue = retained(oldValue);
+
+            long newExpiryTimestamp;
+            if (newTtlInMillis == null) {
+                newExpiryTimestamp = oldValue.getExpiryTimestamp();
+            } else {
+                newExpiryTimestamp = (newTtlInMillis > 0) ? timeSource.millis() + newTtlInMillis : -1;
+            }
+
+            ValueWithTTL newValue = writeValue(key, oldValue, value, newExpiryTimestamp);
+            logOperation(Command.UPDATE, key, oldValue, newValue);
+            walSequence = commit(Command.UPDATE, key, newValue);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(walSequence);
+        // No admission candidate: an update only resizes a key that is already resident.
+        evictIfNeeded((String) null);
+        return true;
+    }
+
+    /**
+     * Returns the values for keys in iteration order, null where a key is absent or expired.
+     */
+    public List<String> mget(Collection<String> keys) {
+        Objects.requireNonNull(keys, "Keys cannot be null");
+        String[] values = new String[keys.size()];
+        if (mode == ConcurrencyMode.STRIPED) {
+            mgetInternal(keys, values);
+        } else {
+            ReentrantLock lock = stripes[0];
+            lock.lock();
+            try {
+                mgetInternal(keys, values);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    private void mgetInternal(Collection<String> keys, String[] values) {
+        int i = 0;
+        for (String key : keys) {
+            Objects.requireNonNull(key, "Key cannot be null");
+            values[i++] = getInternal(key);
+        }
+    }
+
+    public void mset(Map<String, String> entries) {
+        mset(entries, -1);
+    }
+
+    /**
+     * Sets every entry under one acquisition of the stripes involved and records the batch as a single
+     * undo step.
+     */
+    public void mset(Map<String, String> entries, long ttlInMillis) {
+        Objects.requireNonNull(entries, "Entries cannot be null");
+        entries.forEach((key, value) -> {
+            Objects.requireNonNull(key, "Key cannot be null");
+            Objects.requireNonNull(value, "Value cannot be null");
+        });
+        long expiryTimestamp = (ttlInMillis > 0) ? timeSource.millis() + ttlInMillis : -1;
+        boolean recordHistory = history.isEnabled();
+        List<Operation> operations = recordHistory ? new ArrayList<>(entries.size()) : Collections.emptyList();
+        List<String> inserted = new ArrayList<>();
+        long walSequence = 0;
+        boolean[] held = lockAll(entries.keySet());
+        try {
+            long now = now();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                String key = entry.getKey();
+                ValueWithTTL current = store.get(key);
+                if (current == null) {
+                    inserted.add(key);
+                }
+                ValueWithTTL oldValue = (current != null && current.hasExpired(now)) ? null : retained(current);
+                ValueWithTTL newValue = writeValue(key, current, entry.getValue(), expiryTimestamp);
+                if (recordHistory) {
+                    operations.add(history.newOperation(Command.SET, key, oldValue, newValue));
+                }
+                walSequence = commit(Command.SET, key, newValue);
+            }
+            logBatch(operations);
+        } finally {
+            unlockAll(held);
+        }
+        awaitDurable(walSequence);
+        evictIfNeeded(inserted);
+    }
+
+    /**
+     * Deletes every key under one acquisition of the stripes involved; returns how many live keys were removed.
+     */
+    public int mdelete(Collection<String> keys) {
+        Objects.requireNonNull(keys, "Keys cannot be null");
+        Set<String> distinctKeys = new LinkedHashSet<>(keys);
+        for (String key : distinctKeys) {
+            Objects.requireNonNull(key, "Key cannot be null");
+        }
+        boolean recordHistory = history.isEnabled();
+        List<Operation> operations = recordHistory ? new ArrayList<>(distinctKeys.size()) : Collections.emptyList();
+        long walSequence = 0;
+        int deleted = 0;
+        boolean[] held = lockAll(distinctKeys);
+        try {
+            for (String key : distinctKeys) {
+                ValueWithTTL removedValue = retained(store.get(key));
+                if (removedValue == null) {
+                    continue;
+                }
+                removeEntry(key);
+                if (removedValue.hasExpired(timeSource)) {
+                    publish(Command.EXPIRE, key, null);
+                    continue;
+                }
+                walSequence = commit(Command.DELETE, key, null);
+                deleted++;
+                if (recordHistory) {
+                    operations.add(history.newOperation(Command.DELETE, key, removedValue, null));
+                }
+            }
+            logBatch(operations);
+        } finally {
+            unlockAll(held);
+        }
+        awaitDurable(walSequence);
+        return deleted;
+    }
+
+    public List<String> scan() {
+        return read(() -> {
+            List<String> activeKeys = new ArrayList<>();
+            long now = now();
+            store.forEach((key, valueWithTTL) -> {
+                if (!valueWithTTL.hasExpired(now)) {
+                    activeKeys.add(key);
+                }
+            });
+            return activeKeys;
+        });
+    }
+
+    public List<String> scanByPrefix(String prefix) {
+        Objects.requireNonNull(prefix, "Prefix cannot be null");
+        return read(() -> {
+            List<String> matchingKeys = new ArrayList<>();
+            long now = now();
+            for (String key : keyIndex.tailSet(prefix, true)) {
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (isLive(key, now)) {
+                    matchingKeys.add(key);
+                }
+            }
+            return matchingKeys;
+        });
+    }
+
+    public List<String> scanRange(String fromInclusive, String toExclusive) {
+        Objects.requireNonNull(fromInclusive, "From key cannot be null");
+        Objects.requireNonNull(toExclusive, "To key cannot be null");
+        return read(() -> {
+            List<String> matchingKeys = new ArrayList<>();
+            if (fromInclusive.compareTo(toExclusive) >= 0) {
+                return matchingKeys;
+            }
+            long now = now();
+            for (String key : keyIndex.subSet(fromInclusive, true, toExclusive, false)) {
+                if (isLive(key, now)) {
+                    matchingKeys.add(key);
+                }
+            }
+            return matchingKeys;
+        });
+    }
+
+    /**
+     * Returns up to limit keys with the given prefix that sort after cursor (or from the start when cursor is null).
+     * Pass the returned page's nextCursor back in to continue; it is null once the prefix is exhausted.
+     */
+    public ScanPage scanByPrefix(String prefix, String cursor, int limit) {
+        Objects.requireNonNull(prefix, "Prefix cannot be null");
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        return read(() -> {
+            NavigableSet<String> remaining = (cursor == null || cursor.compareTo(prefix) < 0)
+                    ? keyIndex.tailSet(prefix, true)
+                    : keyIndex.tailSet(cursor, false);
+            List<String> keys = new ArrayList<>(Math.min(limit, 64));
+            long now = now();
+            for (String key : remaining) {
+                if (!key.startsWith(prefix)) {
+                    return new ScanPage(keys, null);
+                }
+                if (isLive(key, now)) {
+                    if (keys.size() == limit) {
+                        return new ScanPage(keys, keys.get(limit - 1));
+                    }
+                    keys.add(key);
+                }
+            }
+            return new ScanPage(keys, null);
+        });
+    }
+
+    private boolean isLive(String key, long now) {
+        ValueWithTTL valueWithTTL = store.get(key);
+        return valueWithTTL != null && !valueWithTTL.hasExpired(now);
+    }
+
+    public boolean undo() {
+        while (true) {
+            Operation lastOperation;
+            synchronized (historyLock) {
+                lastOperation = history.peekUndo();
+            }
+            if (lastOperation == null) {
+                return false;
+            }
+
+            // Key locks before history lock, same order as the write path.
+            List<Operation> parts = lastOperation.parts();
+            List<String> inserted = new ArrayList<>();
+            boolean[] held = lockAll(parts);
+            long walSequence = 0;
+            try {
+                synchronized (historyLock) {
+                    if (history.peekUndo() != lastOperation) {
+                        continue;
+                    }
+                    for (Operation part : parts) {
+                        if (!part.canUndo(store.get(part.key))) {
+                            history.clear();
+                            return false;
+                        }
+                    }
+                    history.markUndone();
+                    for (int i = parts.size() - 1; i >= 0; i--) {
+                        Operation part = parts.get(i);
+                        boolean absent = store.get(part.key) == null;
+                        walSequence = Math.max(walSequence, applyUndo(part));
+                        if (absent && store.get(part.key) != null) {
+                            inserted.add(part.key);
+                        }
+                    }
+                }
+            } finally {
+                unlockAll(held);
+            }
+            awaitDurable(walSequence);
+            evictIfNeeded(inserted);
+            return true;
+        }
+    }
+
+    private long applyUndo(Operation operation) {
+        ValueWithTTL previous = operation.oldValue(store.get(operation.key));
+        switch (operation.command) {
+            case SET:
+                if (previous == null) {
+                    removeEntry(operation.key);
+                } else {
+                    putEntry(operation.key, previous);
+                }
+                break;
+            case UPDATE:
+                putEntry(operation.key, previous);
+                break;
+            case DELETE:
+                if (previous != null) {
+                    putEntry(operation.key, previous);
+                }
+                break;
+        }
+        return previous == null
+                ? commit(Command.DELETE, operation.key, null)
+                : commit(Command.SET, operation.key, previous);
+    }
+
+    public boolean redo() {
+        while (true) {
+            Operation operationToRedo;
+            synchronized (historyLock) {
+                operationToRedo = history.peekRedo();
+            }
+            if (operationToRedo == null) {
+                return false;
+            }
+
+            List<Operation> parts = operationToRedo.parts();
+            List<String> inserted = new ArrayList<>();
+            boolean[] held = lockAll(parts);
+            long walSequence = 0;
+            try {
+                synchronized (historyLock) {
+                    if (history.peekRedo() != operationToRedo) {
+                        continue;
+                    }
+                    for (Operation part : parts) {
+                        if (!part.canRedo(store.get(part.key))) {
+                            history.clear();
+                            return false;
+                        }
+                    }
+                    history.markRedone();
+                    for (Operation part : parts) {
+                        boolean absent = store.get(part.key) == null;
+                        walSequence = Math.max(walSequence, applyRedo(part));
+                        if (absent && store.get(part.key) != null) {
+                            inserted.add(part.key);
+                        }
+                    }
+                }
+            } finally {
+                unlockAll(held);
+            }
+            awaitDurable(walSequence);
+            evictIfNeeded(inserted);
+            return true;
+        }
+    }
+
+    private long applyRedo(Operation operation) {
+        switch (operation.command) {
+            case SET:
+            case UPDATE:
+                ValueWithTTL next = operation.newValue(store.get(operation.key));
+                putEntry(operation.key, next);
+                return commit(operation.command, operation.key, next);
+            case DELETE:
+                removeEntry(operation.key);
+                return commit(Command.DELETE, operation.key, null);
+            default:
+                throw new IllegalStateException("Unknown command " + operation.command);
+        }
+    }
+
+    // Locks the stripes of all the given operations' keys in stripe order; returns which stripes are held.
+    private boolean[] lockAll(List<Operation> operations) {
+        boolean[] held = new boolean[stripes.length];
+        for (Operation operation : operations) {
+            held[stripeIndex(operation.key)] = true;
+        }
+        lockStripes(held);
+        return held;
+    }
+
+    private boolean[] lockAll(Collection<String> keys) {
+        boolean[] held = new boolean[stripes.length];
+        for (String key : keys) {
+            held[stripeIndex(key)] = true;
+        }
+        lockStripes(held);
+        return held;
+    }
+
+    private void lockStripes(boolean[] held) {
+        for (int i = 0; i < held.length; i++) {
+            if (held[i]) {
+                stripes[i].lock();
+            }
+        }
+    }
+
+    private void unlockAll(boolean[] held) {
+        for (int i = held.length - 1; i >= 0; i--) {
+            if (held[i]) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    // Called with the key's stripe held so history order matches the order writes hit the map.
+    private void logOperation(Command command, String key, ValueWithTTL oldValue, ValueWithTTL newValue) {
+        synchronized (historyLock) {
+            history.record(command, key, oldValue, newValue);
+        }
+    }
+
+    private void logBatch(List<Operation> operations) {
+        synchronized (historyLock) {
+            history.recordBatch(operations);
+        }
+    }
+
+    public int getUndoSize() {
+        synchronized (historyLock) {
+            return history.undoSize();
+        }
+    }
 
-    private static class ValueWithTTL {
-        final String value;
-        final long expiryTimestamp;
+    public long getHistoryEstimatedBytes() {
+        synchronized (historyLock) {
+            return history.estimatedBytes();
+        }
+    }
 
-        ValueWithTTL(String value, long expiryTimestamp) {
-            this.value = value;
-            this.expiryTimestamp = expiryTimestamp;
+    public int cleanupExpiredKeys() {
+        return read(() -> {
+            int removed = 0;
+            long now = now();
+            for (Map.Entry<String, ValueWithTTL> entry : store.entrySet()) {
+                if (entry.getValue().hasExpired(now) && expire(entry.getKey(), entry.getValue())) {
+                    removed++;
+                }
+            }
+            return removed;
+        });
+    }
+
+    // Removes the entry only if it is still the one observed, so a concurrent set is never lost.
+    private boolean expire(String key, ValueWithTTL expiredEntry) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            // Re-checked under the lock: an in-place overwrite may have given the same entry a new expiry.
+            if (store.get(key) != expiredEntry || !expiredEntry.hasExpired(timeSource)) {
+                return false;
+            }
+            removeEntry(key, expiredEntry);
+            publish(Command.EXPIRE, key, null);
+            return true;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        String getValue() {
-            return value;
+    /**
+     * Recovers the store from the latest snapshot in directory plus the log segments written after it, then
+     * logs every subsequent write there. A snapshot is taken every snapshotIntervalMillis (0 disables periodic
+     * snapshots) so recovery only replays the tail. Must be called before the store is used.
+     * <p>
+     * The first failed log flush or background snapshot stops persistence: every later write still applies in
+     * memory but throws IllegalStateException, with that failure as its cause, instead of returning as if it
+     * were logged.
+     */
+    public void enablePersistence(Path directory, FsyncPolicy fsyncPolicy, long snapshotIntervalMillis)
+            throws IOException {
+        Objects.requireNonNull(directory, "Directory cannot be null");
+        Objects.requireNonNull(fsyncPolicy, "Fsync policy cannot be null");
+        synchronized (this) {
+            if (wal != null) {
+                throw new IllegalStateException("Persistence already enabled");
+            }
+            if (!store.isEmpty()) {
+                throw new IllegalStateException("Persistence must be enabled on an empty store");
+            }
+            Files.createDirectories(directory);
+            long segment = recover(directory);
+            WriteAheadLog log = new WriteAheadLog(directory, fsyncPolicy, segment);
+            wal = log;
+            persistenceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "InMemoryDataStore-persistence");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (fsyncPolicy != FsyncPolicy.ALWAYS) {
+                boolean force = fsyncPolicy == FsyncPolicy.INTERVAL;
+                persistenceExecutor.scheduleWithFixedDelay(() -> {
+                    try {
+                        log.flush(force);
+                    } catch (RuntimeException e) {
+                        log.fail(e);
+                    }
+                }, FSYNC_INTERVAL_MILLIS, FSYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (snapshotIntervalMillis > 0) {
+                persistenceExecutor.scheduleWithFixedDelay(() -> {
+                    try {
+                        snapshot();
+                    } catch (IOException | RuntimeException e) {
+                        log.fail(e);
+                    }
+                }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+            }
         }
+    }
 
-        long getExpiryTimestamp() {
-            return expiryTimestamp;
+    /**
+     * Writes every live entry to a new snapshot file and deletes the log segments and snapshots it supersedes.
+     * Writes keep going while the snapshot is taken; the ones that race with it are also in the next segment,
+     * and replaying them over the snapshot gives the same result.
+     */
+    public void snapshot() throws IOException {
+        WriteAheadLog log = wal;
+        if (log == null) {
+            throw new IllegalStateException("Persistence not enabled");
         }
+        synchronized (snapshotLock) {
+            long segment = log.roll();
+            Path target = WriteAheadLog.snapshotPath(log.directory, segment);
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long now = now();
+                for (Map.Entry<String, ValueWithTTL> entry : store.entrySet()) {
+                    ValueWithTTL value = entry.getValue().stableCopy();
+                    if (value == null || value.hasExpired(now)) {
+                        continue;
+                    }
+                    byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    byte[] valueBytes = value.getValue().getBytes(StandardCharsets.UTF_8);
+                    int recordBytes = WriteAheadLog.recordLength(keyBytes, valueBytes);
+                    if (buffer.remaining() < recordBytes) {
+                        drain(buffer, out);
+                        if (buffer.capacity() < recordBytes) {
+                            buffer = ByteBuffer.allocate(recordBytes);
+                        }
+                    }
+                    WriteAheadLog.writeRecord(buffer, crc, Command.SET, keyBytes, valueBytes,
+                            value.getExpiryTimestamp());
+                }
+                drain(buffer, out);
+                out.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (long older : WriteAheadLog.list(log.directory, WriteAheadLog.SEGMENT_PREFIX, WriteAheadLog.SEGMENT_SUFFIX)) {
+                if (older < segment) {
+                    Files.deleteIfExists(WriteAheadLog.segmentPath(log.directory, older));
+                }
+            }
+            for (long older : WriteAheadLog.list(log.directory, WriteAheadLog.SNAPSHOT_PREFIX, WriteAheadLog.SNAPSHOT_SUFFIX)) {
+                if (older < segment) {
+                    Files.deleteIfExists(WriteAheadLog.snapshotPath(log.directory, older));
+                }
+            }
+        }
+    }
 
-        boolean hasExpired() {
-            return expiryTimestamp != -1 && System.currentTimeMillis() > expiryTimestamp;
+    public void closePersistence() throws IOException, InterruptedException {
+        WriteAheadLog log;
+        synchronized (this) {
+            log = wal;
+            if (log == null) {
+                return;
+            }
+            // shutdown rather than shutdownNow: interrupting a thread inside FileChannel.write closes the channel.
+            persistenceExecutor.shutdown();
+            persistenceExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            wal = null;
+        }
+        synchronized (snapshotLock) {
+            log.close();
         }
+    }
 
-        @Override
-        public String toString() {
-            return "ValueWithTTL{" +
-                    "value='" + value + '\'' +
-                    ", expiryTimestamp=" + expiryTimestamp +
-                    '}';
+    // Loads the newest snapshot and replays later segments; returns the number for the next segment.
+    private long recover(Path directory) throws IOException {
+        long now = now();
+        WriteAheadLog.RecordHandler apply = (command, key, value, expiryTimestamp) -> {
+            if (command == Command.DELETE || (expiryTimestamp != -1 && expiryTimestamp < now)) {
+                removeEntry(key);
+            } else {
+                putEntry(key, new ValueWithTTL(value, expiryTimestamp));
+            }
+        };
+        List<Long> snapshots = WriteAheadLog.list(directory, WriteAheadLog.SNAPSHOT_PREFIX, WriteAheadLog.SNAPSHOT_SUFFIX);
+        long firstSegment = 0;
+        if (!snapshots.isEmpty()) {
+            firstSegment = snapshots.get(snapshots.size() - 1);
+            WriteAheadLog.read(WriteAheadLog.snapshotPath(directory, firstSegment), apply);
         }
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            ValueWithTTL that = (ValueWithTTL) o;
-            return expiryTimestamp == that.expiryTimestamp && Objects.equals(value, that.value);
+        long nextSegment = firstSegment;
+        for (long segment : WriteAheadLog.list(directory, WriteAheadLog.SEGMENT_PREFIX, WriteAheadLog.SEGMENT_SUFFIX)) {
+            if (segment >= firstSegment) {
+                WriteAheadLog.read(WriteAheadLog.segmentPath(directory, segment), apply);
+                nextSegment = segment + 1;
+            }
         }
-        @Override
-        public int hashCode() {
-            return Objects.hash(value, expiryTimestamp);
+        // Recovered keys were all admitted before the restart, so none competes for admission again.
+        evictIfNeeded((String) null);
+        return nextSegment;
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
         }
+        buffer.clear();
     }
 
-    private static class Operation {
-        final Command command;
-        final String key;
-        final ValueWithTTL oldValue;
-        final ValueWithTTL newValue;
+    // Called with the key's stripe held so the log order matches the order writes hit the map.
+    private long persist(Command command, String key, ValueWithTTL value) {
+        WriteAheadLog log = wal;
+        return log == null ? 0 : log.append(command, key, value);
+    }
 
-        Operation(Command command, String key, ValueWithTTL oldValue, ValueWithTTL newValue) {
-            this.command = command;
-            this.key = key;
-            this.oldValue = oldValue;
-            this.newValue = newValue;
+    private void awaitDurable(long walSequence) {
+        WriteAheadLog log = wal;
+        if (log != null && walSequence > 0) {
+            log.awaitDurable(walSequence);
         }
+    }
 
-        @Override
-        public String toString() {
-            return "Operation{" +
-                    "command=" + command +
-                    ", key='" + key + '\'' +
-                    ", oldValue=" + oldValue +
-                    ", newValue=" + newValue +
-                    '}';
+    /**
+     * Starts reclaiming expired keys on a background thread, at most maxExpirationsPerTick per tick,
+     * instead of relying on lazy removal in get or a full cleanupExpiredKeys walk.
+     */
+    public void startExpiryScheduler(long tickMillis, int maxExpirationsPerTick) {
+        if (tickMillis <= 0 || maxExpirationsPerTick <= 0) {
+            throw new IllegalArgumentException("tickMillis and maxExpirationsPerTick must be positive");
         }
+        ExpiryScheduler scheduler;
+        synchronized (this) {
+            if (expiryScheduler != null) {
+                throw new IllegalStateException("Expiry scheduler already running");
+            }
+            scheduler = new ExpiryScheduler(tickMillis, maxExpirationsPerTick);
+            expiryScheduler = scheduler;
+        }
+        store.forEach((key, valueWithTTL) -> {
+            if (valueWithTTL.getExpiryTimestamp() != -1) {
+                scheduler.schedule(key, valueWithTTL.getExpiryTimestamp());
+            }
+        });
     }
 
-    private enum Command {
-        SET,
-        UPDATE,
-        DELETE
+    public synchronized void stopExpiryScheduler() {
+        if (expiryScheduler != null) {
+            expiryScheduler.shutdown();
+            expiryScheduler = null;
+        }
     }
 
-    public synchronized void set(String key, String value) {
+    /**
+     * Delivers every change to key to the returned watch, which buffers up to capacity undelivered events.
+     */
+    public Watch watch(String key, int capacity) {
         Objects.requireNonNull(key, "Key cannot be null");
-        Objects.requireNonNull(value, "Value cannot be null");
-        setInternal(key, value, -1);
+        return register(new Watch(key, false, requirePositive(capacity)));
     }
 
-    public synchronized void setWithTTL(String key, String value, long ttlInMillis) {
-        Objects.requireNonNull(key, "Key cannot be null");
-        Objects.requireNonNull(value, "Value cannot be null");
-        long expiryTimestamp = (ttlInMillis > 0) ? System.currentTimeMillis() + ttlInMillis : -1;
-        setInternal(key, value, expiryTimestamp);
+    /**
+     * Delivers every change to keys starting with prefix to the returned watch.
+     */
+    public Watch watchPrefix(String prefix, int capacity) {
+        Objects.requireNonNull(prefix, "Prefix cannot be null");
+        return register(new Watch(prefix, true, requirePositive(capacity)));
     }
 
-    private void setInternal(String key, String value, long expiryTimestamp) {
-        ValueWithTTL oldValue = store.get(key);
-        if (oldValue != null && oldValue.hasExpired()) {
-            oldValue = null;
+    private static int requirePositive(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
         }
-        ValueWithTTL newValue = new ValueWithTTL(value, expiryTimestamp);
-        store.put(key, newValue);
-        logOperation(new Operation(Command.SET, key, oldValue, newValue));
+        return capacity;
     }
 
-    public synchronized String get(String key) {
-        Objects.requireNonNull(key, "Key cannot be null");
-        ValueWithTTL entry = store.get(key);
+    private Watch register(Watch watch) {
+        synchronized (watchLock) {
+            if (watch.prefix) {
+                prefixWatches.add(watch);
+            } else {
+                keyWatches.computeIfAbsent(watch.target, k -> new CopyOnWriteArrayList<>()).add(watch);
+            }
+            watchCount++;
+        }
+        return watch;
+    }
 
-        if (entry == null) {
-            return null;
+    private void unwatch(Watch watch) {
+        synchronized (watchLock) {
+            if (watch.closed) {
+                return;
+            }
+            watch.closed = true;
+            if (watch.prefix) {
+                prefixWatches.remove(watch);
+            } else {
+                CopyOnWriteArrayList<Watch> watches = keyWatches.get(watch.target);
+                watches.remove(watch);
+                if (watches.isEmpty()) {
+                    keyWatches.remove(watch.target);
+                }
+            }
+            watchCount--;
         }
+    }
 
-        if (entry.hasExpired()) {
-            store.remove(key);
-            return null;
+    // Called with the key's stripe held; costs one volatile read when nothing is watched.
+    private void publish(Command command, String key, ValueWithTTL value) {
+        if (watchCount == 0) {
+            return;
+        }
+        ChangeEvent event = null;
+        CopyOnWriteArrayList<Watch> watches = keyWatches.get(key);
+        if (watches != null) {
+            event = new ChangeEvent(command, key, value == null ? null : value.getValue());
+            for (Watch watch : watches) {
+                watch.offer(event);
+            }
+        }
+        for (Watch watch : prefixWatches) {
+            if (key.startsWith(watch.target)) {
+                if (event == null) {
+                    event = new ChangeEvent(command, key, value == null ? null : value.getValue());
+                }
+                watch.offer(event);
+            }
         }
+    }
 
-        return entry.getValue();
+    // Every applied write goes through here so watchers and the log see the same sequence of changes.
+    private long commit(Command command, String key, ValueWithTTL value) {
+        publish(command, key, value);
+        return persist(command, key, value);
     }
 
-    public synchronized boolean delete(String key) {
-        Objects.requireNonNull(key, "Key cannot be null");
-        ValueWithTTL oldValue = store.get(key);
-        if (oldValue != null && oldValue.hasExpired()) {
-            oldValue = null;
+    public ExpiryStats getExpiryStats() {
+        ExpiryScheduler scheduler = expiryScheduler;
+        return scheduler == null ? new ExpiryStats(0, 0, 0, 0) : scheduler.stats();
+    }
+
+    private long now() {
+        return timeSource.millis();
+    }
+
+    // Stores value for key, reusing the current entry object when no history entry can still reference it.
+    private ValueWithTTL writeValue(String key, ValueWithTTL current, String value, long expiryTimestamp) {
+        // With off-heap storage only slab entries are overwritten, so a heap entry gets a chance to move off-heap.
+        boolean inPlace = inPlaceUpdates && current != null && (offHeap == null || current instanceof OffHeapValue);
+        long before = inPlace ? estimatedBytes(key, current) : 0;
+        if (!inPlace || !current.overwrite(value, expiryTimestamp)) {
+            ValueWithTTL entry = new ValueWithTTL(value, expiryTimestamp);
+            putEntry(key, entry);
+            return entry;
         }
-        ValueWithTTL removedValue = store.remove(key);
-        if (oldValue != null) {
-            logOperation(new Operation(Command.DELETE, key, oldValue, null));
-            return true;
-        } else {
-            return removedValue != null;
+        usedBytes.add(estimatedBytes(key, current) - before);
+        if (sketch != null) {
+            sketch.increment(key);
         }
+        ExpiryScheduler scheduler = expiryScheduler;
+        if (scheduler != null && expiryTimestamp != -1) {
+            scheduler.schedule(key, expiryTimestamp);
+        }
+        return current;
     }
 
-    public synchronized boolean update(String key, String newValue) {
-        Objects.requireNonNull(key, "Key cannot be null");
-        Objects.requireNonNull(newValue, "Value cannot be null");
-        return updateInternal(key, newValue, null);
+    // Returns true if the key was not present before.
+    private boolean putEntry(String key, ValueWithTTL value) {
+        ValueWithTTL stored = offHeap == null ? value : offHeap.store(value);
+        ValueWithTTL previous = store.put(key, stored);
+        usedBytes.add(estimatedBytes(key, stored) - (previous == null ? 0 : estimatedBytes(key, previous)));
+        release(previous);
+        if (previous == null) {
+            keyIndex.add(key);
+            if (eviction.policy != EvictionPolicy.NONE) {
+                clock.add(key);
+                clockSize.incrementAndGet();
+            }
+        }
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        ExpiryScheduler scheduler = expiryScheduler;
+        if (scheduler != null && value.getExpiryTimestamp() != -1) {
+            scheduler.schedule(key, value.getExpiryTimestamp());
+        }
+        return previous == null;
     }
 
-    public synchronized boolean updateWithTTL(String key, String newValue, long ttlInMillis) {
-        Objects.requireNonNull(key, "Key cannot be null");
-        Objects.requireNonNull(newValue, "Value cannot be null");
-        return updateInternal(key, newValue, ttlInMillis);
+    private ValueWithTTL removeEntry(String key) {
+        ValueWithTTL removed = store.remove(key);
+        if (removed != null) {
+            keyIndex.remove(key);
+            usedBytes.add(-estimatedBytes(key, removed));
+            release(removed);
+        }
+        return removed;
     }
 
-    private boolean updateInternal(String key, String value, Long newTtlInMillis) {
-        ValueWithTTL oldValue = store.get(key);
-        if (oldValue == null || oldValue.hasExpired()) {
-            if (oldValue != null && oldValue.hasExpired()) {
-                store.remove(key);
-            }
-            return false;
+    private boolean removeEntry(String key, ValueWithTTL expected) {
+        if (store.remove(key, expected)) {
+            keyIndex.remove(key);
+            usedBytes.add(-estimatedBytes(key, expected));
+            release(expected);
+            return true;
         }
+        return false;
+    }
 
-        long newExpiryTimestamp;
-        if (newTtlInMillis == null) {
-            newExpiryTimestamp = oldValue.getExpiryTimestamp();
-        } else {
-            newExpiryTimestamp = (newTtlInMillis > 0) ? System.currentTimeMillis() + newTtlInMillis : -1;
+    private void release(ValueWithTTL value) {
+        if (value instanceof OffHeapValue) {
+            offHeap.free((OffHeapValue) value);
         }
+    }
 
-        ValueWithTTL newValue = new ValueWithTTL(value, newExpiryTimestamp);
-        store.put(key, newValue);
-        logOperation(new Operation(Command.UPDATE, key, oldValue, newValue));
-        return true;
+    // Off-heap entries are freed when they leave the map, so anything kept beyond the write gets a heap copy.
+    private ValueWithTTL retained(ValueWithTTL value) {
+        return (value instanceof OffHeapValue && history.isEnabled()) ? value.stableCopy() : value;
     }
 
-    public synchronized List<String> scan() {
-        List<String> activeKeys = new ArrayList<>();
-        store.forEach((key, valueWithTTL) -> {
-            if (!valueWithTTL.hasExpired()) {
-                activeKeys.add(key);
-            }
-        });
-        return activeKeys;
+    public long getOffHeapReservedBytes() {
+        return offHeap == null ? 0 : offHeap.reservedBytes();
     }
 
-    public synchronized List<String> scanByPrefix(String prefix) {
-        Objects.requireNonNull(prefix, "Prefix cannot be null");
-        List<String> matchingKeys = new ArrayList<>();
-        store.forEach((key, valueWithTTL) -> {
-            if (key.startsWith(prefix) && !valueWithTTL.hasExpired()) {
-                matchingKeys.add(key);
-            }
-        });
-        return matchingKeys;
+    public long getOffHeapUsedBytes() {
+        return offHeap == null ? 0 : offHeap.usedBytes();
     }
 
-    public synchronized boolean undo() {
-        if (undoStack.isEmpty()) {
-            return false;
+    private void recordAccess(String key, ValueWithTTL entry) {
+        if (eviction.policy == EvictionPolicy.NONE) {
+            return;
         }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+    }
 
-        Operation lastOperation = undoStack.pop();
-        switch (lastOperation.command) {
-            case SET:
-                if (lastOperation.oldValue == null) {
-                    store.remove(lastOperation.key);
-                } else {
-                    store.put(lastOperation.key, lastOperation.oldValue);
+    private boolean overCapacity() {
+        return (eviction.maxEntries > 0 && store.size() > eviction.maxEntries)
+                || (eviction.maxBytes > 0 && usedBytes.sum() > eviction.maxBytes);
+    }
+
+    /**
+     * Called after a write has released its locks. Only one thread sweeps at a time; a writer that finds the
+     * sweep busy queues its inserted keys as admission candidates and leaves the work to it, so the limits can be
+     * overshot briefly by concurrent inserts but no inserted key skips admission.
+     */
+    private void evictIfNeeded(String insertedKey) {
+        evictIfNeeded(insertedKey == null ? Collections.emptyList() : Collections.singletonList(insertedKey));
+    }
+
+    /**
+     * Evicts until the store is back within capacity. With TinyLFU admission each inserted key, in order, is the
+     * candidate against one victim at a time and is itself evicted if it is less frequent, exactly as it would be
+     * after its own single-key insert.
+     */
+    private void evictIfNeeded(List<String> insertedKeys) {
+        if (eviction.policy == EvictionPolicy.NONE || !overCapacity()) {
+            return;
+        }
+        if (sketch != null) {
+            pendingCandidates.addAll(insertedKeys);
+        }
+        // Candidates are queued before trying the lock, so one queued while the holder was finishing is seen by
+        // the holder's check after it unlocks.
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                sweep();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!pendingCandidates.isEmpty() && overCapacity());
+    }
+
+    // Called with evictionLock held.
+    private void sweep() {
+        String candidate = nextCandidate();
+        long budget = 2 * clockSize.get() + 16;
+        while (budget-- > 0) {
+            if (!overCapacity()) {
+                // Keys queued so far were inserted before this check and fit, so they are admitted.
+                if (candidate == null && pendingCandidates.isEmpty()) {
+                    break;
                 }
-                break;
-            case UPDATE:
-                store.put(lastOperation.key, lastOperation.oldValue);
-                break;
-            case DELETE:
-                if (lastOperation.oldValue != null) {
-                    store.put(lastOperation.key, lastOperation.oldValue);
+                candidate = null;
+                pendingCandidates.clear();
+                if (!overCapacity()) {
+                    break;
                 }
+                continue;
+            }
+            String victim = clock.poll();
+            if (victim == null) {
                 break;
+            }
+            clockSize.decrementAndGet();
+            ValueWithTTL entry = store.get(victim);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                requeue(victim);
+                continue;
+            }
+            if (sketch != null && candidate != null && !candidate.equals(victim)
+                    && sketch.frequency(candidate) < sketch.frequency(victim)) {
+                requeue(victim);
+                if (evict(candidate)) {
+                    rejections.increment();
+                }
+                candidate = nextCandidate();
+                continue;
+            }
+            if (victim.equals(candidate)) {
+                candidate = nextCandidate();
+            }
+            evict(victim);
+        }
+        if (clockSize.get() > 2L * store.size() + 1024) {
+            clock.removeIf(key -> !store.containsKey(key));
+            clockSize.set(clock.size());
         }
-        redoStack.push(lastOperation);
-        return true;
     }
 
-    public synchronized boolean redo() {
-        if (redoStack.isEmpty()) {
-            return false;
+    // Skips candidates that were deleted or already evicted while they waited in the queue.
+    private String nextCandidate() {
+        String candidate;
+        while ((candidate = pendingCandidates.poll()) != null && !store.containsKey(candidate)) {
         }
+        return candidate;
+    }
 
-        Operation operationToRedo = redoStack.pop();
-        switch (operationToRedo.command) {
-            case SET:
-            case UPDATE:
-                store.put(operationToRedo.key, operationToRedo.newValue);
-                break;
-            case DELETE:
-                store.remove(operationToRedo.key);
-                break;
+    private void requeue(String key) {
+        clock.add(key);
+        clockSize.incrementAndGet();
+    }
+
+    // Evictions are not undoable but are logged, so a recovered store does not resurrect evicted keys.
+    private boolean evict(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            ValueWithTTL entry = store.get(key);
+            if (entry == null || !removeEntry(key, entry)) {
+                return false;
+            }
+            commit(Command.DELETE, key, null);
+            evictions.increment();
+            return true;
+        } finally {
+            lock.unlock();
         }
-        undoStack.push(operationToRedo);
-        return true;
     }
 
-    private synchronized void logOperation(Operation operation) {
-        undoStack.push(operation);
-        redoStack.clear();
+    public CacheStats getCacheStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(), store.size(),
+                usedBytes.sum());
     }
 
-    public synchronized int cleanupExpiredKeys() {
-        List<String> keysToRemove = new ArrayList<>();
-        store.forEach((key, valueWithTTL) -> {
-            if (valueWithTTL.hasExpired()) {
-                keysToRemove.add(key);
+    private static long estimatedBytes(String key, ValueWithTTL value) {
+        return ENTRY_OVERHEAD_BYTES + 2L * key.length() + value.estimatedValueBytes();
+    }
+
+    private ReentrantLock lockFor(String key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    private int stripeIndex(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    private <T> T read(Supplier<T> reader) {
+        if (mode == ConcurrencyMode.STRIPED) {
+            return reader.get();
+        }
+        ReentrantLock lock = stripes[0];
+        lock.lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Loads keyCount keys with and without a write-ahead log, then snapshots half way, writes the rest
+     * again and times how long a fresh store takes to recover from the directory.
+     */
+    static void benchmarkPersistence(Path directory, int keyCount, FsyncPolicy policy)
+            throws IOException, InterruptedException {
+        String value = "v".repeat(32);
+
+        InMemoryDataStore inMemory = new InMemoryDataStore(ConcurrencyMode.STRIPED, HistoryConfig.disabled());
+        long start = System.nanoTime();
+        for (int i = 0; i < keyCount; i++) {
+            inMemory.set("key:" + i, value);
+        }
+        double inMemoryMillis = (System.nanoTime() - start) / 1e6;
+
+        InMemoryDataStore persisted = new InMemoryDataStore(ConcurrencyMode.STRIPED, HistoryConfig.disabled());
+        persisted.enablePersistence(directory, policy, 0);
+        start = System.nanoTime();
+        for (int i = 0; i < keyCount; i++) {
+            persisted.set("key:" + i, value);
+        }
+        double persistedMillis = (System.nanoTime() - start) / 1e6;
+        persisted.snapshot();
+        for (int i = 0; i < keyCount / 10; i++) {
+            persisted.set("key:" + i, value + i);
+        }
+        persisted.closePersistence();
+
+        InMemoryDataStore recovered = new InMemoryDataStore(ConcurrencyMode.STRIPED, HistoryConfig.disabled());
+        start = System.nanoTime();
+        recovered.enablePersistence(directory, policy, 0);
+        double recoveryMillis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("keys=%,d policy=%s in-memory=%.0f ms with-wal=%.0f ms recovery=%.0f ms (%,d keys, key:1=%s)%n",
+                keyCount, policy, inMemoryMillis, persistedMillis, recoveryMillis, recovered.store.size(),
+                recovered.get("key:1"));
+        recovered.closePersistence();
+    }
+
+    /**
+     * Loads keyCount 200-char values and returns the retained heap growth in bytes.
+     */
+    static long measureStorageHeap(StorageMode storageMode, int keyCount) throws InterruptedException {
+        long before = usedHeapAfterGc();
+        InMemoryDataStore ds = new InMemoryDataStore(ConcurrencyMode.STRIPED, HistoryConfig.disabled(),
+                EvictionConfig.unbounded(), TimeSource.SYSTEM, storageMode);
+        String body = "x".repeat(192);
+        for (int i = 0; i < keyCount; i++) {
+            ds.set("key:" + i, body + String.format("%08d", i));
+        }
+        long after = usedHeapAfterGc();
+        System.out.printf("%-8s heap=%,d KB off-heap used=%,d KB reserved=%,d KB, key:7=...%s%n", storageMode,
+                (after - before) / 1024, ds.getOffHeapUsedBytes() / 1024, ds.getOffHeapReservedBytes() / 1024,
+                ds.get("key:7").substring(192));
+        for (int i = 0; i < keyCount; i++) {
+            ds.set("key:" + i, "short:" + i);
+        }
+        System.out.printf("%-8s after overwriting with short values: off-heap used=%,d KB, key:7=%s%n", storageMode,
+                ds.getOffHeapUsedBytes() / 1024, ds.get("key:7"));
+        return after - before;
+    }
+
+    /**
+     * Overwrites one off-heap key rounds times, alternating values that fit the same chunk with ones that need a
+     * larger chunk, while another thread reads it. Returns whether every read saw one whole value and every
+     * chunk the value moved out of was freed.
+     */
+    static boolean verifyOffHeapOverwrites(int rounds) throws InterruptedException {
+        InMemoryDataStore ds = new InMemoryDataStore(ConcurrencyMode.STRIPED, HistoryConfig.disabled(),
+                EvictionConfig.unbounded(), TimeSource.SYSTEM, StorageMode.OFF_HEAP);
+        String[] values = {"a".repeat(100), "b".repeat(120), "c".repeat(1_000)};
+        ds.set("key", values[0]);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicBoolean consistent = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                String value = ds.get("key");
+                if (value == null || !Arrays.asList(values).contains(value)) {
+                    consistent.set(false);
+                }
             }
         });
-        keysToRemove.forEach(store::remove);
-        return keysToRemove.size();
+        reader.start();
+        for (int i = 0; i < rounds; i++) {
+            ds.set("key", values[i % values.length]);
+        }
+        done.set(true);
+        reader.join();
+        ds.set("key", values[0]);
+        return consistent.get() && ds.getOffHeapUsedBytes() == 128;
+    }
+
+    /**
+     * Single-threaded nanoseconds per get and per overwrite on keys that all carry a TTL, after a warm-up pass.
+     * Returns {ns/get, ns/set, checksum of the lengths read}; printing the checksum keeps the reads live.
+     */
+    static double[] benchmarkOperationCost(TimeSource timeSource, HistoryConfig historyConfig, int operations) {
+        InMemoryDataStore ds = new InMemoryDataStore(ConcurrencyMode.STRIPED, historyConfig,
+                EvictionConfig.unbounded(), timeSource);
+        String[] keys = new String[1_024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key:" + i;
+            ds.setWithTTL(keys[i], "value", 600_000);
+        }
+        double[] result = new double[3];
+        long checksum = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                checksum += ds.get(keys[i & (keys.length - 1)]).length();
+            }
+            result[0] = (System.nanoTime() - start) / (double) operations;
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                ds.setWithTTL(keys[i & (keys.length - 1)], "value", 600_000);
+            }
+            result[1] = (System.nanoTime() - start) / (double) operations;
+        }
+        result[2] = checksum;
+        return result;
+    }
+
+    /**
+     * Overwrites keyCount keys writes times with 200-char values that differ in their last few characters
+     * and returns the retained heap growth in bytes.
+     */
+    static long measureHistoryHeap(HistoryConfig config, int keyCount, int writes) throws InterruptedException {
+        long before = usedHeapAfterGc();
+        InMemoryDataStore ds = new InMemoryDataStore(ConcurrencyMode.STRIPED, config);
+        String body = "x".repeat(192);
+        for (int i = 0; i < writes; i++) {
+            ds.set("key:" + (i % keyCount), body + String.format("%08d", i));
+        }
+        long after = usedHeapAfterGc();
+        Reference.reachabilityFence(ds);
+        return after - before;
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Runs a mixed get/set workload from the given number of threads and returns operations per second.
+     */
+    static double benchmarkThroughput(ConcurrencyMode mode, int threads, int keyCount, int readPercent,
+                                      long durationMillis) throws InterruptedException {
+        InMemoryDataStore ds = new InMemoryDataStore(mode);
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key:" + i;
+            ds.set(keys[i], "value:" + i);
+        }
+
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + durationMillis * 1_000_000L;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            String key = keys[random.nextInt(keyCount)];
+                            if (random.nextInt(100) < readPercent) {
+                                ds.get(key);
+                            } else {
+                                ds.set(key, "v");
+                            }
+                        }
+                        ops += 256;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    operations.add(ops);
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        start.countDown();
+        done.await();
+        return operations.sum() * 1000.0 / durationMillis;
     }
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws InterruptedException, IOException {
         InMemoryDataStore ds = new InMemoryDataStore();
 
         System.out.println("--- Part 1: Basic CRUD ---");
@@ -272,6 +2990,11 @@ public class InMemoryDataStore {
         System.out.println("Scan prefix 'user:': " + ds.scanByPrefix("user:"));
         System.out.println("Scan prefix 'prod': " + ds.scanByPrefix("prod"));
         System.out.println("Scan prefix 'xyz': " + ds.scanByPrefix("xyz"));
+        ds.set("user:3", "Carol");
+        System.out.println("Scan range [user:1, user:3): " + ds.scanRange("user:1", "user:3"));
+        ScanPage page = ds.scanByPrefix("user:", null, 2);
+        System.out.println("Page 1 of 'user:': " + page);
+        System.out.println("Page 2 of 'user:': " + ds.scanByPrefix("user:", page.getNextCursor(), 2));
 
         System.out.println("\n--- Part 3: TTL ---");
         ds.setWithTTL("tempKey", "Temporary", 100);
@@ -331,7 +3054,21 @@ public class InMemoryDataStore {
         ds.set("d", "4");
         System.out.println("Redo after new operation: " + ds.redo());
 
-        System.out.println("\nUndo stack size: " + ds.undoStack.size());
+        System.out.println("\nBatch: mset x,y,z then undo as one step");
+        Map<String, String> batch = new LinkedHashMap<>();
+        batch.put("x", "10");
+        batch.put("y", "20");
+        batch.put("z", "30");
+        ds.mset(batch);
+        System.out.println("mget [x, y, z, nope]: " + ds.mget(List.of("x", "y", "z", "nope")));
+        System.out.println("mdelete [x, y, nope]: " + ds.mdelete(List.of("x", "y", "nope")));
+        System.out.println("mget after mdelete: " + ds.mget(List.of("x", "y", "z")));
+        ds.undo();
+        System.out.println("mget after undoing mdelete: " + ds.mget(List.of("x", "y", "z")));
+        ds.undo();
+        System.out.println("mget after undoing mset: " + ds.mget(List.of("x", "y", "z")));
+
+        System.out.println("\nUndo stack size: " + ds.getUndoSize());
 
         System.out.println("\nCleanup Check:");
         ds.setWithTTL("exp1", "gone soon", 50);
@@ -340,5 +3077,190 @@ public class InMemoryDataStore {
         Thread.sleep(100);
         System.out.println("Manual cleanup count: " + ds.cleanupExpiredKeys());
         System.out.println("Scan after cleanup: " + ds.scanByPrefix("exp"));
+
+        System.out.println("\n--- Part 5: Background expiry ---");
+        ds.startExpiryScheduler(10, 1_000);
+        for (int i = 0; i < 5_000; i++) {
+            ds.setWithTTL("session:" + i, "token" + i, 50 + (i % 100));
+        }
+        ds.setWithTTL("longLived", "stays", 60_000);
+        System.out.println("Keys before expiry: " + ds.store.size());
+        Thread.sleep(400);
+        System.out.println("Keys after expiry: " + ds.store.size());
+        System.out.println("Expiry stats: " + ds.getExpiryStats());
+        ds.stopExpiryScheduler();
+
+        System.out.println("\n--- Part 6: Watch ---");
+        try (Watch orderWatch = ds.watch("order:1", 16); Watch allOrders = ds.watchPrefix("order:", 4)) {
+            ds.set("order:1", "placed");
+            ds.update("order:1", "shipped");
+            ds.setWithTTL("order:2", "pending", 20);
+            ds.delete("order:1");
+            Thread.sleep(40);
+            ds.cleanupExpiredKeys();
+            List<ChangeEvent> events = new ArrayList<>();
+            orderWatch.drainTo(events, Integer.MAX_VALUE);
+            System.out.println("order:1 events: " + events);
+            events.clear();
+            allOrders.drainTo(events, Integer.MAX_VALUE);
+            System.out.println("order:* events: " + events.size() + ", dropped: " + allOrders.getDroppedEvents());
+        }
+        try (Watch lazyWatch = ds.watchPrefix("lazy:", 16)) {
+            ds.setWithTTL("lazy:1", "a", 20);
+            ds.setWithTTL("lazy:2", "b", 20);
+            ds.setWithTTL("lazy:3", "c", 20);
+            Thread.sleep(40);
+            ds.set("lazy:1", "again");
+            boolean deleted = ds.delete("lazy:2");
+            int mdeleted = ds.mdelete(List.of("lazy:3"));
+            List<ChangeEvent> events = new ArrayList<>();
+            lazyWatch.drainTo(events, Integer.MAX_VALUE);
+            System.out.println("Writes over expired keys: " + events.subList(3, events.size())
+                    + ", delete: " + deleted + ", mdelete: " + mdeleted);
+        }
+
+        System.out.println("\n--- Part 7: History memory (1,000 keys, 200,000 writes) ---");
+        HistoryConfig[] historyConfigs = {
+                HistoryConfig.disabled(),
+                HistoryConfig.unbounded(),
+                HistoryConfig.unbounded().withDeltaEncoding(),
+                HistoryConfig.bounded(10_000, 0),
+                HistoryConfig.bounded(0, 1_000_000).withDeltaEncoding()
+        };
+        for (HistoryConfig historyConfig : historyConfigs) {
+            long bytes = measureHistoryHeap(historyConfig, 1_000, 200_000);
+            System.out.printf("%-90s %,d KB%n", historyConfig, bytes / 1024);
+        }
+
+        System.out.println("\n--- Part 8: Eviction (capacity 1,000, 100 hot keys, 20,000 cold inserts) ---");
+        for (EvictionPolicy policy : new EvictionPolicy[]{EvictionPolicy.LRU, EvictionPolicy.TINY_LFU}) {
+            for (boolean batched : new boolean[]{false, true}) {
+                InMemoryDataStore cache = new InMemoryDataStore(ConcurrencyMode.STRIPED, HistoryConfig.disabled(),
+                        EvictionConfig.bounded(policy, 1_000, 0));
+                for (int i = 0; i < 100; i++) {
+                    cache.set("hot:" + i, "h");
+                }
+                for (int i = 0; i < 20_000; i++) {
+                    if (!batched) {
+                        cache.set("cold:" + i, "c");
+                    } else if (i % 10 == 0) {
+                        Map<String, String> coldKeys = new LinkedHashMap<>();
+                        for (int j = i; j < i + 10; j++) {
+                            coldKeys.put("cold:" + j, "c");
+                        }
+                        cache.mset(coldKeys);
+                    }
+                    cache.get("hot:" + (i % 100));
+                    cache.get("cold:" + (i / 2));
+                }
+                int hotRetained = 0;
+                for (String value : cache.mget(cache.scanByPrefix("hot:"))) {
+                    if (value != null) {
+                        hotRetained++;
+                    }
+                }
+                System.out.println(policy + (batched ? " (mset of 10)" : "") + ": hot keys retained=" + hotRetained
+                        + " " + cache.getCacheStats());
+            }
+        }
+        // Writers that find the sweep busy hand their keys to it, so admission still runs under contention.
+        InMemoryDataStore contended = new InMemoryDataStore(ConcurrencyMode.STRIPED, HistoryConfig.disabled(),
+                EvictionConfig.bounded(EvictionPolicy.TINY_LFU, 1_000, 0));
+        for (int i = 0; i < 100; i++) {
+            contended.set("hot:" + i, "h");
+        }
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int writer = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    contended.set("cold:" + writer + ":" + i, "c");
+                    contended.get("hot:" + (i % 100));
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        int hotRetained = 0;
+        for (String value : contended.mget(contended.scanByPrefix("hot:"))) {
+            if (value != null) {
+                hotRetained++;
+            }
+        }
+        System.out.println("TINY_LFU (4 writers): hot keys retained=" + hotRetained + " "
+                + contended.getCacheStats());
+
+        System.out.println("\n--- Part 9: Per-operation cost (TTL keys, single thread) ---");
+        try (CachedTimeSource cachedClock = new CachedTimeSource(1)) {
+            double[] baseline = benchmarkOperationCost(TimeSource.SYSTEM, HistoryConfig.disabled(), 2_000_000);
+            double[] cached = benchmarkOperationCost(cachedClock, HistoryConfig.disabled(), 2_000_000);
+            double[] allocating = benchmarkOperationCost(cachedClock, HistoryConfig.bounded(1, 0), 2_000_000);
+            System.out.printf("system clock:                   get %.1f ns, set %.1f ns (in place)%n", baseline[0], baseline[1]);
+            System.out.printf("cached clock:                   get %.1f ns, set %.1f ns (in place)%n", cached[0], cached[1]);
+            System.out.printf("cached clock, history enabled:  get %.1f ns, set %.1f ns (new entry per set)%n",
+                    allocating[0], allocating[1]);
+            System.out.printf("checksums: %.0f %.0f %.0f%n", baseline[2], cached[2], allocating[2]);
+        }
+
+        System.out.println("\n--- Part 10: Off-heap storage (200,000 keys, 200-char values) ---");
+        for (StorageMode storageMode : StorageMode.values()) {
+            measureStorageHeap(storageMode, 200_000);
+        }
+        System.out.println("Concurrent reads of a key overwritten in and out of its chunk consistent: "
+                + verifyOffHeapOverwrites(1_000_000));
+
+        System.out.println("\n--- Part 11: Persistence ---");
+        Path dataDirectory = Files.createTempDirectory("datastore");
+        InMemoryDataStore durable = new InMemoryDataStore();
+        durable.enablePersistence(dataDirectory, FsyncPolicy.ALWAYS, 0);
+        durable.set("user:1", "Alice");
+        durable.setWithTTL("session:1", "token", 60_000);
+        durable.snapshot();
+        durable.update("user:1", "Alicia");
+        durable.set("user:2", "Bob");
+        durable.delete("session:1");
+        durable.closePersistence();
+        InMemoryDataStore restarted = new InMemoryDataStore();
+        restarted.enablePersistence(dataDirectory, FsyncPolicy.ALWAYS, 0);
+        System.out.println("Recovered keys: " + restarted.scanByPrefix("") + ", user:1=" + restarted.get("user:1"));
+        restarted.closePersistence();
+        Path lostDirectory = Files.createTempDirectory("datastore-lost");
+        InMemoryDataStore failing = new InMemoryDataStore();
+        failing.enablePersistence(lostDirectory, FsyncPolicy.INTERVAL, 50);
+        failing.set("user:1", "Alice");
+        deleteDirectory(lostDirectory);
+        Thread.sleep(200);
+        try {
+            failing.set("user:2", "Bob");
+            System.out.println("Write after a failed snapshot was acknowledged");
+        } catch (IllegalStateException e) {
+            System.out.println("Write after a failed snapshot: " + e.getMessage() + " (" + e.getCause() + ")");
+        }
+        try {
+            failing.closePersistence();
+        } catch (IllegalStateException e) {
+            System.out.println("Closing the failed log: " + e.getMessage());
+        }
+        // The first argument sets the key count (10000000 fits in -Xmx4500m); ALWAYS fsyncs every write, so it
+        // stays at 10,000 keys.
+        int persistenceKeys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            Path benchmarkDirectory = Files.createTempDirectory("datastore-bench");
+            benchmarkPersistence(benchmarkDirectory,
+                    policy == FsyncPolicy.ALWAYS ? Math.min(10_000, persistenceKeys) : persistenceKeys, policy);
+            deleteDirectory(benchmarkDirectory);
+        }
+        deleteDirectory(dataDirectory);
+
+        System.out.println("\n--- Part 12: Concurrency benchmark (90% get / 10% set) ---");
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[]{1, cores, cores * 2}) {
+            for (ConcurrencyMode mode : ConcurrencyMode.values()) {
+                double opsPerSecond = benchmarkThroughput(mode, threads, 10_000, 90, 300);
+                System.out.printf("%-12s threads=%-3d %,.0f ops/s%n", mode, threads, opsPerSecond);
+            }
+        }
     }
 }
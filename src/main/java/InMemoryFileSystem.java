@@ -1,14 +1,398 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Safe for concurrent use without external locking. Path lookups take no locks: children live in
+ * ConcurrentHashMaps, and a lookup that overlapped an mv is retried, so it never sees part of the tree from before a
+ * move and part from after. Writers lock only the directory (or file) they change; an operation that needs two nodes
+ * locks them in id order.
+ *
+ * Every directory carries the total size and file count of its subtree, so getSize and getFileCount are O(1) and a
+ * directory can be given a quota that writes into it may not exceed. Writers that change sizes hold treeLock shared
+ * while they update the totals of each ancestor; mv and cp hold it exclusively, which keeps the ancestor chains
+ * stable under those writers and keeps two moves from racing each other into a cycle.
+ *
+ * File content is stored as UTF-8 bytes in chunks (see FileContent), so appends cost only what they add, sizes are
+ * in bytes, and a file can be read in ranges or streamed without building it into one String.
+ *
+ * cp is copy-on-write: it links the source node under the destination and marks it shared. A shared node is never
+ * changed in place again. Writers resolve their paths from the root and replace each shared node they pass with a
+ * private clone (see unshare), so a copy costs nothing up front and memory only for the paths that later diverge.
+ * Only those private paths have meaningful parent pointers, which is all addToAncestors and mv rely on.
+ *
+ * Paths are walked name by name with a PathCursor rather than split, and writers resolve a parent and its leaf in
+ * the same walk. Constructed with a path cache, path lookups first try a fixed-size table of recently resolved
+ * paths. An entry stays valid until its node is removed or pathGeneration moves on, which every relink that can
+ * change what an existing path resolves to (mv, cp over an existing node, unshare) does.
+ */
 class FileSystem {
     class FileNode {
-        boolean isFile = false;
-        Map<String, FileNode> children = new HashMap<>();
-        String content = "";
-        int size = 0;
-        Map<String, Permissions> permissions = new HashMap<>(); // User -> Permissions
+        final long id = nextId.getAndIncrement();
+        final ReentrantLock lock = new ReentrantLock();
+        volatile boolean isFile = false;
+        volatile FileNode parent; // Changed only under the treeLock write lock
+        volatile boolean removed; // Set under lock once unlinked; writers that find it set start over from the root
+        Map<String, FileNode> children = new ConcurrentHashMap<>();
+        final FileContent content; // Files only
+        final AtomicLong subtreeSize = new AtomicLong(); // Directories only
+        final AtomicLong subtreeFiles = new AtomicLong(); // Directories only
+        volatile long quota; // Max subtreeSize, 0 for none
+        volatile boolean shared; // Linked from more than one place; set under the treeLock write lock, never cleared
+        Map<String, Permissions> permissions = new ConcurrentHashMap<>(); // User -> Permissions
 
         public FileNode() {
+            this.content = null;
+        }
+
+        FileNode(FileNode parent, boolean isFile) {
+            this.parent = parent;
+            this.isFile = isFile;
+            this.content = isFile ? new FileContent() : null;
+        }
+
+        FileNode(FileNode parent, FileContent content) {
+            this.parent = parent;
+            this.isFile = true;
+            this.content = content;
+        }
+
+        // A private copy of this node for parent; the children it had become shared between the two
+        FileNode cloneFor(FileNode parent) {
+            FileNode clone = isFile ? new FileNode(parent, content.copy()) : new FileNode(parent, false);
+            for (Map.Entry<String, FileNode> entry : children.entrySet()) {
+                entry.getValue().shared = true;
+                clone.children.put(entry.getKey(), entry.getValue());
+            }
+            clone.subtreeSize.set(subtreeSize.get());
+            clone.subtreeFiles.set(subtreeFiles.get());
+            clone.quota = quota;
+            clone.permissions.putAll(permissions);
+            return clone;
+        }
+    }
+
+    /**
+     * A file's bytes, kept as a list of chunks so an append copies only what it adds. Every chunk but the last is
+     * CHUNK_BYTES long and never changes again; the last one doubles in capacity as it fills, up to CHUNK_BYTES.
+     * Bytes below length are never rewritten, so readers take no lock: they read length, then chunks, and look at
+     * nothing past that length. A grown last chunk replaces the old one in a slot readers may already be looking
+     * at, so slots are written with release and read with acquire semantics. Appends must be serialized by the
+     * caller.
+     */
+    static class FileContent {
+        static final int CHUNK_BYTES = 8192;
+        private static final int MIN_CHUNK_BYTES = 16;
+        private static final VarHandle CHUNK = MethodHandles.arrayElementVarHandle(byte[][].class);
+
+        private volatile byte[][] chunks = new byte[0][];
+        private int chunkCount;
+        private volatile long length;
+
+        long length() {
+            return length;
+        }
+
+        void append(byte[] bytes) {
+            byte[][] current = chunks;
+            int count = chunkCount;
+            long size = length;
+            int offset = 0;
+            while (offset < bytes.length) {
+                int remaining = bytes.length - offset;
+                int used = count == 0 ? CHUNK_BYTES : (int) (size - (long) (count - 1) * CHUNK_BYTES);
+                byte[] tail;
+                if (used == CHUNK_BYTES) {
+                    if (count == current.length) {
+                        current = Arrays.copyOf(current, Math.max(4, count * 2));
+                    }
+                    tail = new byte[capacityFor(remaining)];
+                    CHUNK.setRelease(current, count++, tail);
+                    used = 0;
+                } else {
+                    tail = current[count - 1];
+                    if (used + remaining > tail.length && tail.length < CHUNK_BYTES) {
+                        // Readers still holding the old tail see the same bytes below length in either copy
+                        tail = Arrays.copyOf(tail,
+                                Math.min(CHUNK_BYTES, Math.max(tail.length * 2, capacityFor(used + remaining))));
+                        CHUNK.setRelease(current, count - 1, tail);
+                    }
+                }
+                int n = Math.min(remaining, tail.length - used);
+                System.arraycopy(bytes, offset, tail, used, n);
+                offset += n;
+                size += n;
+            }
+            chunkCount = count;
+            chunks = current;
+            length = size; // Publishes the bytes written above
+        }
+
+        private static int capacityFor(int bytes) {
+            if (bytes >= CHUNK_BYTES) {
+                return CHUNK_BYTES;
+            }
+            return Math.max(MIN_CHUNK_BYTES, Integer.highestOneBit(bytes - 1) << 1);
+        }
+
+        /**
+         * Copies bytes from position, stopping at end (a length this content had at some point) or when dst is
+         * full; returns how many were copied, or -1 if position is at or past end.
+         */
+        int read(long position, long end, ByteBuffer dst) {
+            if (position >= end) {
+                return -1;
+            }
+            int total = (int) Math.min(dst.remaining(), end - position);
+            byte[][] current = chunks;
+            int copied = 0;
+            while (copied < total) {
+                long at = position + copied;
+                byte[] chunk = (byte[]) CHUNK.getAcquire(current, (int) (at / CHUNK_BYTES));
+                int within = (int) (at % CHUNK_BYTES);
+                int n = Math.min(total - copied, CHUNK_BYTES - within);
+                dst.put(chunk, within, n);
+                copied += n;
+            }
+            return total;
+        }
+
+        byte[] toBytes(long position, long end) {
+            if (position >= end) {
+                return new byte[0];
+            }
+            if (end - position > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Range too large for one array: " + (end - position));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - position));
+            read(position, end, buffer);
+            return buffer.array();
+        }
+
+        @Override
+        public String toString() {
+            return new String(toBytes(0, length), StandardCharsets.UTF_8);
+        }
+
+        // Shares the full chunks, which never change, and copies only the partly filled last one
+        FileContent copy() {
+            long end = length;
+            byte[][] current = chunks;
+            int count = (int) ((end + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            FileContent copy = new FileContent();
+            byte[][] copied = Arrays.copyOf(current, Math.max(4, count));
+            int used = (int) (end - (long) (count - 1) * CHUNK_BYTES);
+            if (count > 0 && used < CHUNK_BYTES) {
+                // Keeps a power-of-two capacity so growing it in append stops exactly at CHUNK_BYTES
+                copied[count - 1] = Arrays.copyOf((byte[]) CHUNK.getAcquire(current, count - 1), capacityFor(used));
+            }
+            for (int i = count; i < copied.length; i++) {
+                copied[i] = null;
+            }
+            copy.chunks = copied;
+            copy.chunkCount = count;
+            copy.length = end;
+            return copy;
+        }
+    }
+
+    /**
+     * Reads a file as it was when the stream was opened; later appends are not seen.
+     */
+    private static class ContentInputStream extends InputStream {
+        private final FileContent content;
+        private final long end;
+        private long position;
+        private long mark;
+
+        ContentInputStream(FileContent content) {
+            this.content = content;
+            this.end = content.length();
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            int n = content.read(position, end, ByteBuffer.wrap(b, off, len));
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+    }
+
+    /**
+     * Channel counterpart of ContentInputStream, filling the caller's buffer straight from the chunks.
+     */
+    private static class ContentChannel implements ReadableByteChannel {
+        private final FileContent content;
+        private final long end;
+        private long position;
+        private volatile boolean open = true;
+
+        ContentChannel(FileContent content) {
+            this.content = content;
+            this.end = content.length();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            int n = content.read(position, end, dst);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Steps through the names of a path in place instead of splitting it; empty names, from "//" or a trailing
+     * "/", are skipped. The cursor also serves as the key for looking its current name up in a children map: it
+     * hashes like that name's String and equals it, so finding a child allocates nothing. It is only ever passed
+     * to get and remove, never stored in a map.
+     */
+    private static final class PathCursor {
+        private final String path;
+        private int start;
+        private int end;
+        private int hash;
+
+        PathCursor(String path) {
+            this.path = path;
+        }
+
+        void reset() {
+            start = 0;
+            end = 0;
+        }
+
+        // Moves to the next name; returns false once there are none left
+        boolean next() {
+            int length = path.length();
+            int from = end;
+            while (from < length && path.charAt(from) == '/') {
+                from++;
+            }
+            int to = from;
+            int h = 0;
+            while (to < length && path.charAt(to) != '/') {
+                h = 31 * h + path.charAt(to);
+                to++;
+            }
+            start = from;
+            end = to;
+            hash = h;
+            return to > from;
+        }
+
+        boolean hasName() {
+            return end > start;
+        }
+
+        boolean isLast() {
+            for (int i = end; i < path.length(); i++) {
+                if (path.charAt(i) != '/') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String name() {
+            return path.substring(start, end);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof String)) {
+                return false;
+            }
+            String name = (String) other;
+            return name.length() == end - start && path.regionMatches(start, name, 0, end - start);
+        }
+    }
+
+    private static final class PathCacheEntry {
+        final String path;
+        final FileNode node;
+        final long generation;
+
+        PathCacheEntry(String path, FileNode node, long generation) {
+            this.path = path;
+            this.node = node;
+            this.generation = generation;
         }
     }
 
@@ -24,23 +408,67 @@ class FileSystem {
         }
     }
 
+    private final AtomicLong nextId = new AtomicLong();
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+    // Odd while an mv is relinking a node; bumped only under the treeLock write lock
+    private volatile long moveVersion;
+    private final AtomicLong pathGeneration = new AtomicLong();
+    private final PathCacheEntry[] pathCache; // Null when disabled
     FileNode root;
 
     public FileSystem() {
+        this(0);
+    }
+
+    /**
+     * pathCacheSize is the number of resolved paths to remember, rounded up to a power of two; 0 disables the
+     * cache. Each path has one slot, chosen by its hash, and a lookup that lands on another path replaces it.
+     */
+    public FileSystem(int pathCacheSize) {
+        if (pathCacheSize < 0) {
+            throw new IllegalArgumentException("Path cache size cannot be negative");
+        }
         root = new FileNode();
+        pathCache = pathCacheSize == 0 ? null
+                : new PathCacheEntry[Math.max(2, Integer.highestOneBit(pathCacheSize - 1) << 1)];
     }
 
     private FileNode getNode(String path) {
-        FileNode current = root;
-        if (!path.equals("/")) {
-            String[] parts = path.split("/");
-            for (int i = 1; i < parts.length; i++) {
-                if (!current.children.containsKey(parts[i])) {
-                    return null;
+        PathCacheEntry[] cache = pathCache;
+        int slot = 0;
+        long generation = 0;
+        if (cache != null) {
+            // Read before the walk, so an entry made from a walk that overlapped a relink is already stale
+            generation = pathGeneration.get();
+            int h = path.hashCode();
+            slot = (h ^ (h >>> 16)) & (cache.length - 1);
+            PathCacheEntry entry = cache[slot];
+            if (entry != null && entry.generation == generation && !entry.node.removed && entry.path.equals(path)) {
+                return entry.node;
+            }
+        }
+        while (true) {
+            long version = moveVersion;
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            FileNode node = walk(path);
+            if (moveVersion == version) {
+                if (cache != null && node != null) {
+                    cache[slot] = new PathCacheEntry(path, node, generation);
                 }
-                current = current.children.get(parts[i]);
+                return node;
             }
         }
+    }
+
+    private FileNode walk(String path) {
+        FileNode current = root;
+        PathCursor cursor = new PathCursor(path);
+        while (current != null && cursor.next()) {
+            current = current.children.get(cursor);
+        }
         return current;
     }
 
@@ -52,8 +480,11 @@ class FileSystem {
         }
 
         if (node.isFile) {
-            String[] parts = path.split("/");
-            result.add(parts[parts.length - 1]);
+            PathCursor cursor = new PathCursor(path);
+            while (cursor.next() && !cursor.isLast()) {
+                // Skip to the file's own name
+            }
+            result.add(cursor.name());
         } else {
             result.addAll(node.children.keySet());
             Collections.sort(result);
@@ -62,228 +493,504 @@ class FileSystem {
     }
 
     public void mkdir(String path) {
+        treeLock.readLock().lock();
+        try {
+            makeDirs(new PathCursor(path), false);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks path for a writer, creating missing directories and cloning shared ones, and returns the last
+     * directory. With stopAtLeaf the walk stops before the last name and leaves path on it, so the caller gets the
+     * parent and the leaf from one pass; path has no name there only if it named the root. The caller must hold
+     * treeLock, so nothing it gets back becomes shared before it is done.
+     */
+    private FileNode makeDirs(PathCursor path, boolean stopAtLeaf) {
         FileNode current = root;
-        String[] parts = path.split("/");
-        for (int i = 1; i < parts.length; i++) {
-            if (!current.children.containsKey(parts[i])) {
-                current.children.put(parts[i], new FileNode());
+        path.reset();
+        while (path.next()) {
+            if (stopAtLeaf && path.isLast()) {
+                break;
+            }
+            FileNode next = getOrCreateChild(current, path, false);
+            if (next != null && next.shared) {
+                next = unshare(current, path, next);
+            }
+            if (next == null) {
+                // current was removed after we stepped into it
+                current = root;
+                path.reset();
+            } else {
+                current = next;
             }
-            current = current.children.get(parts[i]);
         }
+        return current;
     }
 
-    public void addContentToFile(String filePath, String content) {
+    // Like makeDirs, but returns null instead of creating anything that is missing
+    private FileNode resolveForWrite(PathCursor path, boolean stopAtLeaf) {
         FileNode current = root;
-        String[] parts = filePath.split("/");
-        for (int i = 1; i < parts.length - 1; i++) {
-            if (!current.children.containsKey(parts[i])) {
-                current.children.put(parts[i], new FileNode());
+        path.reset();
+        while (path.next()) {
+            if (stopAtLeaf && path.isLast()) {
+                break;
             }
-            current = current.children.get(parts[i]);
-        }
-        String fileName = parts[parts.length - 1];
-        if (!current.children.containsKey(fileName)) {
-            current.children.put(fileName, new FileNode());
+            FileNode next = current.children.get(path);
+            if (next == null) {
+                return null;
+            }
+            if (next.shared) {
+                next = unshare(current, path, next);
+                if (next == null) {
+                    current = root;
+                    path.reset();
+                    continue;
+                }
+            }
+            current = next;
         }
-        FileNode fileNode = current.children.get(fileName);
-        fileNode.isFile = true;
-        fileNode.content += content;
-        fileNode.size = fileNode.content.length();
+        return current;
     }
 
-    public String readContentFromFile(String filePath) {
-        FileNode node = getNode(filePath);
-        if (node != null && node.isFile) {
-            return node.content;
+    /**
+     * Replaces dir's shared child with a private clone and returns the clone. If another writer replaced it first,
+     * returns what is there now; returns null if dir has been removed or the child is gone.
+     */
+    private FileNode unshare(FileNode dir, PathCursor name, FileNode child) {
+        dir.lock.lock();
+        try {
+            if (dir.removed) {
+                return null;
+            }
+            FileNode current = dir.children.get(name);
+            if (current != child) {
+                return current;
+            }
+            FileNode clone = child.cloneFor(dir);
+            dir.children.put(name.name(), clone);
+            pathGeneration.incrementAndGet();
+            return clone;
+        } finally {
+            dir.lock.unlock();
         }
-        return ""; // Or throw an exception
     }
 
-    public void rm(String path) {
-        if (path.equals("/")) {
-            return; // Cannot remove root
-        }
-        String[] parts = path.split("/");
-        String fileName = parts[parts.length - 1];
-        String parentPath = "";
-        if (parts.length > 1) {
-            parentPath = String.join("/", Arrays.copyOfRange(parts, 1, parts.length - 1));
-            if (!parentPath.isEmpty()) {
-                parentPath = "/" + parentPath;
-            } else {
-                parentPath = "/";
+    /**
+     * Returns null if dir has been removed, since anything created under it would be unreachable. Creating a file
+     * requires the treeLock read lock, because it updates the file counts of dir's ancestors.
+     */
+    private FileNode getOrCreateChild(FileNode dir, PathCursor name, boolean isFile) {
+        FileNode child = dir.children.get(name);
+        if (child != null) {
+            return child;
+        }
+        dir.lock.lock();
+        try {
+            if (dir.removed) {
+                return null;
             }
-        } else {
-            parentPath = "/";
+            child = dir.children.get(name);
+            if (child == null) {
+                child = new FileNode(dir, isFile);
+                dir.children.put(name.name(), child);
+                if (isFile) {
+                    addToAncestors(dir, 0, 1, false);
+                }
+            }
+            return child;
+        } finally {
+            dir.lock.unlock();
         }
+    }
 
-        FileNode parentNode = getNode(parentPath);
-        if (parentNode == null || !parentNode.children.containsKey(fileName)) {
-            return; // Path not found
+    private static long sizeOf(FileNode node) {
+        if (node == null) {
+            return 0;
         }
+        return node.isFile ? node.content.length() : node.subtreeSize.get();
+    }
 
-        FileNode nodeToRemove = parentNode.children.get(fileName);
-        if (!nodeToRemove.isFile && !nodeToRemove.children.isEmpty()) {
-            System.out.println("Cannot remove non-empty directory: " + path);
-            return;
+    private static long filesOf(FileNode node) {
+        if (node == null) {
+            return 0;
         }
+        return node.isFile ? 1 : node.subtreeFiles.get();
+    }
 
-        parentNode.children.remove(fileName);
+    /**
+     * Adds to the totals of dir and every directory above it. With enforceQuota, growth that would take any of
+     * them past its quota is undone and false is returned. The caller must hold treeLock so the chain of parents
+     * cannot change underneath it.
+     */
+    private static boolean addToAncestors(FileNode dir, long bytes, long files, boolean enforceQuota) {
+        for (FileNode node = dir; node != null; node = node.parent) {
+            if (!reserve(node, bytes, enforceQuota)) {
+                for (FileNode undo = dir; undo != node; undo = undo.parent) {
+                    undo.subtreeSize.addAndGet(-bytes);
+                }
+                return false;
+            }
+        }
+        if (files != 0) {
+            for (FileNode node = dir; node != null; node = node.parent) {
+                node.subtreeFiles.addAndGet(files);
+            }
+        }
+        return true;
     }
 
-    public void cp(String sourcePath, String destinationPath) {
-        FileNode sourceNode = getNode(sourcePath);
-        if (sourceNode == null) {
-            System.out.println("Source path not found: " + sourcePath);
-            return;
-        }
-
-        String[] destParts = destinationPath.split("/");
-        String destName = destParts[destParts.length - 1];
-        String destParentPath = "";
-        if (destParts.length > 1) {
-            destParentPath = String.join("/", Arrays.copyOfRange(destParts, 1, destParts.length - 1));
-            if (!destParentPath.isEmpty()) {
-                destParentPath = "/" + destParentPath;
-            } else {
-                destParentPath = "/";
+    private static boolean reserve(FileNode dir, long bytes, boolean enforceQuota) {
+        long quota = dir.quota;
+        if (!enforceQuota || quota == 0 || bytes <= 0) {
+            dir.subtreeSize.addAndGet(bytes);
+            return true;
+        }
+        while (true) {
+            long current = dir.subtreeSize.get();
+            if (current + bytes > quota) {
+                return false;
+            }
+            if (dir.subtreeSize.compareAndSet(current, current + bytes)) {
+                return true;
             }
-        } else {
-            destParentPath = "/";
         }
+    }
 
-        FileNode destParentNode = getNode(destParentPath);
-        if (destParentNode == null) {
-            mkdir(destParentPath);
-            destParentNode = getNode(destParentPath);
-            if (destParentNode == null) {
-                System.out.println("Failed to create destination parent directory: " + destParentPath);
-                return;
+    /**
+     * Resolves (creating if needed) the file at filePath, retrying until it gets one that is still linked. Returns
+     * the root if filePath names it, which append then refuses as a directory.
+     */
+    private FileNode getOrCreateFile(String filePath) {
+        PathCursor path = new PathCursor(filePath);
+        while (true) {
+            FileNode dir = makeDirs(path, true);
+            if (!path.hasName()) {
+                return dir;
+            }
+            FileNode fileNode = getOrCreateChild(dir, path, true);
+            if (fileNode != null && fileNode.shared) {
+                fileNode = unshare(dir, path, fileNode);
+            }
+            if (fileNode != null && !fileNode.removed) {
+                return fileNode;
             }
         }
+    }
 
-        if (sourceNode.isFile) {
-            FileNode newFile = new FileNode();
-            newFile.isFile = true;
-            newFile.content = sourceNode.content;
-            newFile.size = sourceNode.size;
-            destParentNode.children.put(destName, newFile);
-        } else {
-            // Deep copy of the directory
-            FileNode newDir = copyDirectory(sourceNode);
-            destParentNode.children.put(destName, newDir);
-        }
-    }
-
-    private FileNode copyDirectory(FileNode sourceDir) {
-        FileNode newDir = new FileNode();
-        for (Map.Entry<String, FileNode> entry : sourceDir.children.entrySet()) {
-            String name = entry.getKey();
-            FileNode child = entry.getValue();
-            if (child.isFile) {
-                FileNode newFile = new FileNode();
-                newFile.isFile = true;
-                newFile.content = child.content;
-                newFile.size = child.size;
-                newDir.children.put(name, newFile);
+    /**
+     * Returns false if fileNode was removed before the lock was taken; otherwise the content was appended or the
+     * reason it could not be was reported. The caller must hold the treeLock read lock.
+     */
+    private boolean append(FileNode fileNode, byte[] content, String filePath) {
+        fileNode.lock.lock();
+        try {
+            if (fileNode.removed) {
+                return false;
+            }
+            if (!fileNode.isFile) {
+                System.out.println("Cannot write to a directory: " + filePath);
+            } else if (!addToAncestors(fileNode.parent, content.length, 0, true)) {
+                System.out.println("Quota exceeded writing to: " + filePath);
             } else {
-                newDir.children.put(name, copyDirectory(child));
+                fileNode.content.append(content);
             }
+            return true;
+        } finally {
+            fileNode.lock.unlock();
         }
-        return newDir;
     }
 
-    public void mv(String sourcePath, String destinationPath) {
-        FileNode sourceNode = getNode(sourcePath);
-        if (sourceNode == null) {
-            System.out.println("Source path not found: " + sourcePath);
-            return;
-        }
-
-        String[] sourceParts = sourcePath.split("/");
-        String sourceName = sourceParts[sourceParts.length - 1];
-        String sourceParentPath = "";
-        if (sourceParts.length > 1) {
-            sourceParentPath = String.join("/", Arrays.copyOfRange(sourceParts, 1, sourceParts.length - 1));
-            if (!sourceParentPath.isEmpty()) {
-                sourceParentPath = "/" + sourceParentPath;
-            } else {
-                sourceParentPath = "/";
+    public void addContentToFile(String filePath, String content) {
+        addContentToFile(filePath, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void addContentToFile(String filePath, byte[] content) {
+        treeLock.readLock().lock();
+        try {
+            while (!append(getOrCreateFile(filePath), content, filePath)) {
+                // Removed between lookup and append; append to the file that replaces it
             }
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    public String readContentFromFile(String filePath) {
+        FileNode node = getNode(filePath);
+        if (node != null && node.isFile) {
+            return node.content.toString();
+        }
+        return ""; // Or throw an exception
+    }
+
+    /**
+     * Returns up to length bytes of the file starting at offset; fewer if the file ends first, and none if the
+     * file does not exist.
+     */
+    public byte[] read(String filePath, long offset, int length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length cannot be negative");
+        }
+        FileNode node = getNode(filePath);
+        if (node == null || !node.isFile) {
+            return new byte[0];
+        }
+        long end = node.content.length();
+        return node.content.toBytes(Math.min(offset, end), Math.min(end, offset + length));
+    }
+
+    /**
+     * Streams the file's bytes as they are when this is called, or returns null if there is no such file.
+     */
+    public InputStream openInputStream(String filePath) {
+        FileNode node = getNode(filePath);
+        if (node == null || !node.isFile) {
+            return null;
+        }
+        return new ContentInputStream(node.content);
+    }
+
+    public ReadableByteChannel openChannel(String filePath) {
+        FileNode node = getNode(filePath);
+        if (node == null || !node.isFile) {
+            return null;
+        }
+        return new ContentChannel(node.content);
+    }
+
+    // Locks in id order so that any two writers locking the same pair cannot deadlock
+    private static void lockBoth(FileNode a, FileNode b) {
+        if (a.id <= b.id) {
+            a.lock.lock();
+            b.lock.lock();
         } else {
-            sourceParentPath = "/";
+            b.lock.lock();
+            a.lock.lock();
         }
-        FileNode sourceParentNode = getNode(sourceParentPath);
-        if (sourceParentNode == null || !sourceParentNode.children.containsKey(sourceName)) {
-            System.out.println("Source parent or node not found.");
-            return;
+    }
+
+    private static void unlockBoth(FileNode a, FileNode b) {
+        a.lock.unlock();
+        b.lock.unlock();
+    }
+
+    public void rm(String path) {
+        PathCursor cursor = new PathCursor(path);
+
+        treeLock.readLock().lock();
+        try {
+            while (!tryRemove(cursor, path)) {
+                // Moved or removed since we looked it up
+            }
+        } finally {
+            treeLock.readLock().unlock();
         }
+    }
 
-        String[] destParts = destinationPath.split("/");
-        String destName = destParts[destParts.length - 1];
-        String destParentPath = "";
-        if (destParts.length > 1) {
-            destParentPath = String.join("/", Arrays.copyOfRange(destParts, 1, destParts.length - 1));
-            if (!destParentPath.isEmpty()) {
-                destParentPath = "/" + destParentPath;
-            } else {
-                destParentPath = "/";
+    // Returns false if the node or its parent changed between lookup and locking
+    private boolean tryRemove(PathCursor fileName, String path) {
+        FileNode parentNode = resolveForWrite(fileName, true);
+        if (parentNode == null || !fileName.hasName()) {
+            return true; // Path not found, or the root
+        }
+        FileNode nodeToRemove = parentNode.children.get(fileName);
+        if (nodeToRemove == null) {
+            return true; // Path not found
+        }
+
+        // Holding the node's own lock keeps anyone from adding to it between the emptiness check and the unlink
+        lockBoth(parentNode, nodeToRemove);
+        try {
+            if (parentNode.removed || parentNode.children.get(fileName) != nodeToRemove) {
+                return false;
             }
-        } else {
-            destParentPath = "/";
+            if (!nodeToRemove.isFile && !nodeToRemove.children.isEmpty()) {
+                System.out.println("Cannot remove non-empty directory: " + path);
+                return true;
+            }
+            nodeToRemove.removed = true;
+            parentNode.children.remove(fileName);
+            addToAncestors(parentNode, -sizeOf(nodeToRemove), -filesOf(nodeToRemove), false);
+            return true;
+        } finally {
+            unlockBoth(parentNode, nodeToRemove);
         }
+    }
 
-        FileNode destParentNode = getNode(destParentPath);
-        if (destParentNode == null) {
-            mkdir(destParentPath);
-            destParentNode = getNode(destParentPath);
-            if (destParentNode == null) {
-                System.out.println("Failed to create destination parent directory: " + destParentPath);
+    /**
+     * O(1) apart from updating the destination's ancestors: the source itself is linked under the destination and
+     * marked shared, and both copies diverge only as they are written to.
+     */
+    public void cp(String sourcePath, String destinationPath) {
+        PathCursor destName = new PathCursor(destinationPath);
+
+        // Exclusive, so nothing is writing to the source while it is marked shared, nothing is removed from under
+        // the destination, and no writer is inside the subtree being replaced while its totals are subtracted
+        treeLock.writeLock().lock();
+        try {
+            FileNode sourceNode = getNode(sourcePath);
+            if (sourceNode == null) {
+                System.out.println("Source path not found: " + sourcePath);
                 return;
             }
+            FileNode newNode;
+            if (sourceNode == root) {
+                // Nothing could clone the root on a later write, so share its children instead
+                newNode = root.cloneFor(null);
+            } else {
+                sourceNode.shared = true;
+                newNode = sourceNode;
+            }
+
+            // Resolved after the source is marked, so copying a directory into itself clones the path down to the
+            // destination rather than linking the source into its own subtree
+            FileNode destParentNode = makeDirs(destName, true);
+            if (!destName.hasName()) {
+                System.out.println("Cannot copy onto the root directory");
+                return;
+            }
+            FileNode existing = destParentNode.children.get(destName);
+            if (existing == newNode) {
+                return; // Copied onto itself
+            }
+            FileNode other = existing == null ? destParentNode : existing;
+            lockBoth(destParentNode, other);
+            try {
+                if (!addToAncestors(destParentNode, sizeOf(newNode) - sizeOf(existing),
+                        filesOf(newNode) - filesOf(existing), true)) {
+                    System.out.println("Quota exceeded copying to: " + destinationPath);
+                    return;
+                }
+                if (!newNode.shared) {
+                    newNode.parent = destParentNode;
+                }
+                destParentNode.children.put(destName.name(), newNode);
+                if (existing != null) {
+                    existing.removed = true;
+                    existing.parent = null;
+                    pathGeneration.incrementAndGet(); // Cached paths below existing now lead elsewhere
+                }
+            } finally {
+                unlockBoth(destParentNode, other);
+            }
+        } finally {
+            treeLock.writeLock().unlock();
         }
+    }
 
-        if (destParentNode.children.containsKey(destName)) {
-            System.out.println("Destination already exists: " + destinationPath);
-            return;
+    public void mv(String sourcePath, String destinationPath) {
+        String failure = move(sourcePath, destinationPath);
+        if (failure != null) {
+            System.out.println(failure);
         }
+    }
 
-        destParentNode.children.put(destName, sourceNode);
-        sourceParentNode.children.remove(sourceName);
+    // Returns why the move did not happen, or null if it did
+    private String move(String sourcePath, String destinationPath) {
+        PathCursor sourceName = new PathCursor(sourcePath);
+        PathCursor destName = new PathCursor(destinationPath);
+
+        // Exclusive, so no other move can change which nodes are ancestors of which while this one runs, nothing
+        // is removed from under it, and no writer is updating the totals being moved
+        treeLock.writeLock().lock();
+        try {
+            FileNode sourceNode = getNode(sourcePath);
+            if (sourceNode == null || sourceNode == root) {
+                return "Source path not found: " + sourcePath;
+            }
+
+            // The destination is resolved first, since cloning shared nodes on its path may replace the source
+            FileNode destParentNode = makeDirs(destName, true);
+            if (!destName.hasName()) {
+                return "Destination already exists: " + destinationPath;
+            }
+            FileNode sourceParentNode = resolveForWrite(sourceName, true);
+            sourceNode = sourceParentNode.children.get(sourceName);
+            // Both paths are now private, so their parent pointers are exact
+            for (FileNode node = destParentNode; node != null; node = node.parent) {
+                if (node == sourceNode) {
+                    return "Cannot move a directory into itself: " + sourcePath;
+                }
+            }
+
+            lockBoth(sourceParentNode, destParentNode);
+            try {
+                if (destParentNode.children.containsKey(destName)) {
+                    return "Destination already exists: " + destinationPath;
+                }
+
+                long bytes = sizeOf(sourceNode);
+                long files = filesOf(sourceNode);
+                addToAncestors(sourceParentNode, -bytes, -files, false);
+                if (!addToAncestors(destParentNode, bytes, files, true)) {
+                    addToAncestors(sourceParentNode, bytes, files, false);
+                    return "Quota exceeded moving to: " + destinationPath;
+                }
+
+                moveVersion++;
+                destParentNode.children.put(destName.name(), sourceNode);
+                sourceParentNode.children.remove(sourceName);
+                sourceNode.parent = destParentNode;
+                pathGeneration.incrementAndGet();
+                moveVersion++;
+                return null;
+            } finally {
+                unlockBoth(sourceParentNode, destParentNode);
+            }
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
+    /**
+     * The size in bytes of the file or subtree at path, capped at Integer.MAX_VALUE; see getTotalSize for the
+     * exact figure.
+     */
     public int getSize(String path) {
+        return (int) Math.min(Integer.MAX_VALUE, getTotalSize(path));
+    }
+
+    public long getTotalSize(String path) {
         FileNode node = getNode(path);
-        if (node == null) {
-            return 0;
-        }
-        if (node.isFile) {
-            return node.size;
-        } else {
-            int totalSize = 0;
-            for (FileNode child : node.children.values()) {
-                totalSize += getSizeHelper(child);
-            }
-            return totalSize;
-        }
+        return sizeOf(node);
     }
 
-    private int getSizeHelper(FileNode node) {
-        if (node.isFile) {
-            return node.size;
-        } else {
-            int totalSize = 0;
-            for (FileNode child : node.children.values()) {
-                totalSize += getSizeHelper(child);
+    public long getFileCount(String path) {
+        FileNode node = getNode(path);
+        return filesOf(node);
+    }
+
+    /**
+     * Limits the total size of everything under the directory at path to maxBytes; 0 removes the limit. Writes,
+     * copies and moves that would take it past the limit are refused. A directory already over the new limit keeps
+     * its content but cannot grow.
+     */
+    public void setQuota(String path, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Quota cannot be negative");
+        }
+        treeLock.readLock().lock();
+        try {
+            FileNode node = resolveForWrite(new PathCursor(path), false);
+            if (node != null && !node.isFile) {
+                node.quota = maxBytes;
             }
-            return totalSize;
+        } finally {
+            treeLock.readLock().unlock();
         }
     }
 
     public void setPermissions(String path, String user, boolean read, boolean write, boolean execute) {
-        FileNode node = getNode(path);
-        if (node != null) {
-            node.permissions.put(user, new Permissions(read, write, execute));
+        treeLock.readLock().lock();
+        try {
+            FileNode node = resolveForWrite(new PathCursor(path), false);
+            if (node != null) {
+                node.permissions.put(user, new Permissions(read, write, execute));
+            }
+        } finally {
+            treeLock.readLock().unlock();
         }
     }
 
@@ -301,9 +1008,9 @@ class FileSystem {
         if (node != null && node.isFile) {
             Permissions p = getPermissions(filePath, user);
             if (p != null && p.read) {
-                return node.content;
+                return node.content.toString();
             } else if (p == null) {
-                return node.content; // Default allow if no specific permissions
+                return node.content.toString(); // Default allow if no specific permissions
             } else {
                 System.out.println("Permission denied to read: " + filePath + " for user: " + user);
                 return null;
@@ -314,31 +1021,22 @@ class FileSystem {
 
     // Example of checking write permission before adding content to a file
     public void addContentToFile(String filePath, String content, String user) {
-        FileNode current = root;
-        String[] parts = filePath.split("/");
-        for (int i = 1; i < parts.length - 1; i++) {
-            if (!current.children.containsKey(parts[i])) {
-                current.children.put(parts[i], new FileNode());
-            }
-            current = current.children.get(parts[i]);
-        }
-        String fileName = parts[parts.length - 1];
-        if (!current.children.containsKey(fileName)) {
-            current.children.put(fileName, new FileNode());
-        }
-        FileNode fileNode = current.children.get(fileName);
-
-        Permissions p = getPermissions(filePath, user);
-        if (p != null && p.write) {
-            fileNode.isFile = true;
-            fileNode.content += content;
-            fileNode.size = fileNode.content.length();
-        } else if (p == null) {
-            fileNode.isFile = true;
-            fileNode.content += content;
-            fileNode.size = fileNode.content.length();
-        } else {
-            System.out.println("Permission denied to write to: " + filePath + " for user: " + user);
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        treeLock.readLock().lock();
+        try {
+            while (true) {
+                FileNode fileNode = getOrCreateFile(filePath);
+                Permissions p = fileNode.permissions.get(user);
+                if (p != null && !p.write) {
+                    System.out.println("Permission denied to write to: " + filePath + " for user: " + user);
+                    return;
+                }
+                if (append(fileNode, bytes, filePath)) {
+                    return; // Default allow if no specific permissions
+                }
+            }
+        } finally {
+            treeLock.readLock().unlock();
         }
     }
 
@@ -351,6 +1049,510 @@ class FileSystem {
         }
         return false;
     }
+
+    /**
+     * Runs random moves of directories into each other, moves of files between directories, appends, copies and
+     * directory snapshots from threads threads, then checks that nothing was lost, duplicated or moved into a
+     * cycle and that every directory's totals match its content. A move into a directory that has itself been
+     * moved away recreates it at the root, so the tree grows as it runs.
+     */
+    static void stressTest(int threads, int operationsPerThread, int pathCacheSize) throws InterruptedException {
+        int dirCount = 16;
+        int fileCount = 256;
+        FileSystem fs = new FileSystem(pathCacheSize);
+        for (int d = 0; d < dirCount; d++) {
+            fs.mkdir("/d" + d);
+            fs.mkdir("/files" + (d % 4));
+        }
+        for (int f = 0; f < fileCount; f++) {
+            fs.addContentToFile("/files" + (f % 4) + "/f" + f, "");
+        }
+        for (int t = 0; t < threads; t++) {
+            fs.addContentToFile("/log/t" + t, "");
+        }
+        List<FileNode> originalDirs = new ArrayList<>();
+        for (int d = 0; d < dirCount; d++) {
+            originalDirs.add(fs.getNode("/d" + d));
+        }
+
+        AtomicInteger moves = new AtomicInteger();
+        AtomicInteger appends = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for (int i = 0; i < operationsPerThread; i++) {
+                        int a = random.nextInt(dirCount);
+                        int b = random.nextInt(dirCount);
+                        int f = random.nextInt(fileCount);
+                        switch (random.nextInt(5)) {
+                            case 0:
+                                // Races with the reverse move of b into a; only one of them may win
+                                if (fs.move("/d" + a, "/d" + b + "/d" + a) == null) {
+                                    moves.incrementAndGet();
+                                }
+                                break;
+                            case 1:
+                                if (fs.move("/d" + b + "/d" + a, "/d" + a) == null) {
+                                    moves.incrementAndGet();
+                                }
+                                break;
+                            case 2:
+                                fs.move("/files" + random.nextInt(4) + "/f" + f,
+                                        "/files" + random.nextInt(4) + "/f" + f);
+                                break;
+                            case 3:
+                                int choice = random.nextInt(3);
+                                if (choice == 0) {
+                                    fs.cp("/log/t" + thread, "/copies/t" + thread);
+                                } else if (choice == 1) {
+                                    fs.rm("/copies/t" + thread);
+                                } else {
+                                    fs.cp("/files" + random.nextInt(4), "/snapshots/t" + thread);
+                                }
+                                break;
+                            default:
+                                fs.addContentToFile("/log/t" + thread, "x");
+                                appends.incrementAndGet();
+                                fs.ls("/files" + random.nextInt(4));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        start.countDown();
+        done.await();
+
+        Set<FileNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<FileNode> pending = new ArrayDeque<>(List.of(fs.root));
+        boolean consistent = true;
+        while (!pending.isEmpty()) {
+            FileNode node = pending.pop();
+            if (!seen.add(node)) {
+                consistent &= node.shared; // Only copies may be linked from two places
+                continue;
+            }
+            for (FileNode child : node.children.values()) {
+                consistent &= child.shared || child.parent == node;
+                pending.push(child);
+            }
+        }
+        int files = 0;
+        for (int d = 0; d < 4; d++) {
+            files += fs.ls("/files" + d).size();
+        }
+        int appended = 0;
+        for (String log : fs.ls("/log")) {
+            appended += fs.getSize("/log/" + log);
+        }
+        consistent &= seen.containsAll(originalDirs);
+        List<FileNode> wrongTotals = new ArrayList<>();
+        if (consistent) {
+            recount(fs.root, wrongTotals);
+        }
+        System.out.println("  Path cache " + pathCacheSize + ": " + moves.get() + " directory moves, "
+                + seen.size() + " reachable nodes; files " + files + "/" + fileCount + ", appended chars "
+                + appended + "/" + appends.get()
+                + ", tree consistent: " + consistent + ", directories with wrong totals: " + wrongTotals.size());
+    }
+
+    /**
+     * Recomputes the size and file count of node's subtree by walking it, adding each directory whose totals
+     * disagree to wrongTotals. Iterative, since the stress test leaves very deep trees; a shared node is counted
+     * once for every place it is linked.
+     */
+    private static long[] recount(FileNode node, List<FileNode> wrongTotals) {
+        List<FileNode> preOrder = new ArrayList<>();
+        Deque<FileNode> pending = new ArrayDeque<>(List.of(node));
+        while (!pending.isEmpty()) {
+            FileNode next = pending.pop();
+            preOrder.add(next);
+            next.children.values().forEach(pending::push);
+        }
+        Map<FileNode, long[]> totals = new IdentityHashMap<>();
+        for (int i = preOrder.size() - 1; i >= 0; i--) {
+            FileNode current = preOrder.get(i);
+            long[] own;
+            if (current.isFile) {
+                own = new long[]{current.content.length(), 1};
+            } else {
+                own = new long[2];
+                for (FileNode child : current.children.values()) {
+                    long[] childTotals = totals.get(child);
+                    own[0] += childTotals[0];
+                    own[1] += childTotals[1];
+                }
+                if (own[0] != current.subtreeSize.get() || own[1] != current.subtreeFiles.get()) {
+                    wrongTotals.add(current);
+                }
+            }
+            totals.put(current, own);
+        }
+        return totals.get(node);
+    }
+
+    /**
+     * Builds a tree of dirCount directories of filesPerDir files each and times getSize and getFileCount on the
+     * root against a full walk of the tree, which is what getSize used to do.
+     */
+    static void benchmarkGetSize(int dirCount, int filesPerDir) {
+        FileSystem fs = new FileSystem();
+        for (int d = 0; d < dirCount; d++) {
+            for (int f = 0; f < filesPerDir; f++) {
+                fs.addContentToFile("/projects/p" + (d % 10) + "/d" + d + "/file" + f, "content" + f);
+            }
+        }
+        int rounds = 1_000;
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            checksum += fs.getTotalSize("/") + fs.getFileCount("/");
+        }
+        double incrementalNanos = (System.nanoTime() - start) / (double) rounds;
+
+        int walks = 10;
+        start = System.nanoTime();
+        for (int i = 0; i < walks; i++) {
+            checksum -= recount(fs.root, new ArrayList<>())[0];
+        }
+        double walkNanos = (System.nanoTime() - start) / (double) walks;
+        System.out.printf("  %,d files, %,d bytes: getTotalSize + getFileCount %,.0f ns, full walk %,.0f ns (checksum %d)%n",
+                fs.getFileCount("/"), fs.getTotalSize("/"), incrementalNanos, walkNanos, checksum);
+    }
+
+    /**
+     * Mixed ls/readContentFromFile/addContentToFile/mkdir load on dirCount directories of filesPerDir files each
+     * from threads threads for durationMillis; returns ops/s. With coarseLock every call is wrapped in one
+     * synchronized block on the FileSystem, the way callers had to use it before.
+     */
+    static double benchmarkMixed(boolean coarseLock, int threads, int dirCount, int filesPerDir, int readPercent,
+                                 long durationMillis) throws InterruptedException {
+        FileSystem fs = new FileSystem();
+        String[] dirs = new String[dirCount];
+        String[] files = new String[dirCount * filesPerDir];
+        for (int d = 0; d < dirCount; d++) {
+            dirs[d] = "/projects/p" + d + "/src";
+            for (int f = 0; f < filesPerDir; f++) {
+                files[d * filesPerDir + f] = dirs[d] + "/file" + f;
+                fs.addContentToFile(files[d * filesPerDir + f], "content");
+            }
+        }
+
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + durationMillis * 1_000_000L;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            int roll = random.nextInt(100);
+                            if (coarseLock) {
+                                synchronized (fs) {
+                                    mixedOperation(fs, dirs, files, roll, readPercent, random);
+                                }
+                            } else {
+                                mixedOperation(fs, dirs, files, roll, readPercent, random);
+                            }
+                        }
+                        ops += 256;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    operations.add(ops);
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        start.countDown();
+        done.await();
+        return operations.sum() * 1000.0 / durationMillis;
+    }
+
+    private static void mixedOperation(FileSystem fs, String[] dirs, String[] files, int roll, int readPercent,
+                                       ThreadLocalRandom random) {
+        if (roll < readPercent / 2) {
+            fs.ls(dirs[random.nextInt(dirs.length)]);
+        } else if (roll < readPercent) {
+            fs.readContentFromFile(files[random.nextInt(files.length)]);
+        } else if (roll % 2 == 0) {
+            fs.addContentToFile(files[random.nextInt(files.length)], "x");
+        } else {
+            fs.mkdir(dirs[random.nextInt(dirs.length)] + "/tmp" + random.nextInt(16));
+        }
+    }
+
+    /**
+     * Appends appends lines of lineBytes bytes to one file, timing it against the String concatenation files
+     * used to be stored with, then checks ranged reads, the stream and the channel against the expected bytes.
+     */
+    static void benchmarkAppend(int appends, int lineBytes) throws IOException {
+        byte[] line = new byte[lineBytes];
+        Arrays.fill(line, (byte) 'x');
+        line[lineBytes - 1] = '\n';
+        String lineText = new String(line, StandardCharsets.UTF_8);
+
+        FileSystem fs = new FileSystem();
+        long start = System.nanoTime();
+        for (int i = 0; i < appends; i++) {
+            fs.addContentToFile("/var/log/app.log", line);
+        }
+        double chunkedMillis = (System.nanoTime() - start) / 1e6;
+
+        int stringAppends = Math.min(appends, 20_000);
+        String concatenated = "";
+        start = System.nanoTime();
+        for (int i = 0; i < stringAppends; i++) {
+            concatenated += lineText;
+        }
+        double stringMillis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("  %,d appends of %d bytes: %,.1f ms chunked; %,d String appends: %,.1f ms (%,d chars)%n",
+                appends, lineBytes, chunkedMillis, stringAppends, stringMillis, concatenated.length());
+
+        long size = fs.getSize("/var/log/app.log");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean rangesMatch = true;
+        for (int i = 0; i < 1_000; i++) {
+            long offset = random.nextLong(size + 10);
+            int length = random.nextInt(3 * FileContent.CHUNK_BYTES);
+            byte[] range = fs.read("/var/log/app.log", offset, length);
+            for (int j = 0; j < range.length; j++) {
+                rangesMatch &= range[j] == line[(int) ((offset + j) % lineBytes)];
+            }
+            rangesMatch &= range.length == Math.max(0, Math.min(length, size - offset));
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        long streamed = 0;
+        start = System.nanoTime();
+        try (InputStream in = fs.openInputStream("/var/log/app.log")) {
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                streamed += n;
+            }
+        }
+        double streamMillis = (System.nanoTime() - start) / 1e6;
+        ByteBuffer direct = ByteBuffer.allocateDirect(64 * 1024);
+        long channelled = 0;
+        try (ReadableByteChannel channel = fs.openChannel("/var/log/app.log")) {
+            for (int n; (n = channel.read(direct)) != -1; direct.clear()) {
+                channelled += n;
+            }
+        }
+        System.out.printf("  %,d bytes; 1,000 random ranged reads match: %b; streamed %,d bytes in %,.1f ms;"
+                + " channel read %,d bytes%n", size, rangesMatch, streamed, streamMillis, channelled);
+
+        fs.addContentToFile("/utf8.txt", "");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            String piece = i % 3 == 0 ? "\u00e9" : i % 3 == 1 ? "\u20ac" : "a";
+            fs.addContentToFile("/utf8.txt", piece);
+            expected.append(piece);
+        }
+        System.out.println("  Multi-byte text split across chunks reads back intact: "
+                + expected.toString().equals(fs.readContentFromFile("/utf8.txt")) + " (" + expected.length()
+                + " chars, " + fs.getSize("/utf8.txt") + " bytes)");
+    }
+
+    /**
+     * Snapshots a tree of dirCount directories of filesPerDir files with cp, then writes to one file in each copy,
+     * counting the nodes each step allocates and checking the two copies stay independent.
+     */
+    static void benchmarkSnapshot(int dirCount, int filesPerDir) {
+        FileSystem fs = new FileSystem();
+        for (int d = 0; d < dirCount; d++) {
+            for (int f = 0; f < filesPerDir; f++) {
+                fs.addContentToFile("/projects/p" + (d % 10) + "/d" + d + "/file" + f, "content" + f);
+            }
+        }
+        long nodes = fs.nextId.get();
+        long start = System.nanoTime();
+        fs.cp("/projects", "/snapshot");
+        double copyMicros = (System.nanoTime() - start) / 1e3;
+        long copyNodes = fs.nextId.get() - nodes;
+        System.out.printf("  cp of %,d files (%,d nodes): %,.1f us, %d nodes allocated%n",
+                fs.getFileCount("/projects"), nodes, copyMicros, copyNodes);
+
+        nodes = fs.nextId.get();
+        fs.addContentToFile("/snapshot/p3/d3/file7", " changed");
+        fs.addContentToFile("/projects/p4/d4/file8", " changed");
+        fs.mkdir("/snapshot/p5/d5/new");
+        System.out.println("  Two appends and a mkdir across both copies allocated " + (fs.nextId.get() - nodes)
+                + " nodes");
+        System.out.println("  /projects/p3/d3/file7: " + fs.readContentFromFile("/projects/p3/d3/file7")
+                + "; /snapshot/p3/d3/file7: " + fs.readContentFromFile("/snapshot/p3/d3/file7"));
+        System.out.println("  /projects/p4/d4/file8: " + fs.readContentFromFile("/projects/p4/d4/file8")
+                + "; /snapshot/p4/d4/file8: " + fs.readContentFromFile("/snapshot/p4/d4/file8"));
+        System.out.println("  /projects: " + fs.getSize("/projects") + " bytes, " + fs.ls("/projects/p5/d5").size()
+                + " entries in p5/d5; /snapshot: " + fs.getSize("/snapshot") + " bytes, "
+                + fs.ls("/snapshot/p5/d5").size() + " entries in p5/d5");
+
+        // Copies share content, so 40 of a 64 MB file take a subtree past 2 GB without the memory.
+        fs.addContentToFile("/large/file0", new byte[64 << 20]);
+        for (int i = 1; i < 40; i++) {
+            fs.cp("/large/file0", "/large/file" + i);
+        }
+        System.out.println("  /large: getTotalSize " + fs.getTotalSize("/large") + " bytes, getSize "
+                + fs.getSize("/large"));
+    }
+
+    // The lookup every operation used to start with, kept as the baseline for benchmarkPathResolution
+    private static FileNode resolveBySplit(FileNode root, String path) {
+        FileNode current = root;
+        if (!path.equals("/")) {
+            String[] parts = path.split("/");
+            for (int i = 1; i < parts.length; i++) {
+                if (!current.children.containsKey(parts[i])) {
+                    return null;
+                }
+                current = current.children.get(parts[i]);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Nanoseconds and bytes allocated per lookup of a file depth directories deep: splitting the path as lookups
+     * used to, walking it with a PathCursor, and through the path cache. Then checks that cached lookups follow
+     * an mv, an rm and a write into a copy.
+     */
+    static void benchmarkPathResolution(int depth, int rounds) {
+        FileSystem plain = new FileSystem();
+        FileSystem cached = new FileSystem(1024);
+        StringBuilder path = new StringBuilder();
+        for (int d = 0; d < depth; d++) {
+            path.append("/directory").append(d);
+        }
+        String filePath = path.append("/file.txt").toString();
+        plain.addContentToFile(filePath, "x");
+        cached.addContentToFile(filePath, "x");
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String[] names = {"split", "cursor", "cached"};
+        for (int round = 0; round < 3; round++) {
+            StringBuilder line = new StringBuilder("  ");
+            for (int variant = 0; variant < names.length; variant++) {
+                long found = 0;
+                long bytes = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    FileNode node = variant == 0 ? resolveBySplit(plain.root, filePath)
+                            : variant == 1 ? plain.getNode(filePath) : cached.getNode(filePath);
+                    found += node == null ? 0 : 1;
+                }
+                double nanos = (System.nanoTime() - start) / (double) rounds;
+                bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+                line.append(String.format("%s %,.0f ns %,d B/op%s", names[variant], nanos, bytes / rounds,
+                        found == rounds ? "" : " (missed)")).append(variant + 1 < names.length ? ", " : "");
+            }
+            if (round == 2) {
+                System.out.println("  Depth " + depth + ":" + line.substring(1));
+            }
+        }
+
+        FileSystem fs = new FileSystem(64);
+        fs.addContentToFile("/a/b/c.txt", "c");
+        fs.readContentFromFile("/a/b/c.txt");
+        fs.mv("/a/b", "/a/moved");
+        String afterMove = fs.readContentFromFile("/a/b/c.txt") + "|" + fs.readContentFromFile("/a/moved/c.txt");
+        fs.rm("/a/moved/c.txt");
+        String afterRemove = fs.readContentFromFile("/a/moved/c.txt");
+        fs.addContentToFile("/src/main.txt", "v1");
+        fs.readContentFromFile("/src/main.txt");
+        fs.cp("/src", "/copy");
+        fs.readContentFromFile("/copy/main.txt");
+        fs.addContentToFile("/copy/main.txt", " v2");
+        System.out.println("  Cached lookups after mv: '" + afterMove + "', after rm: '" + afterRemove
+                + "', after writing a copy: /src '" + fs.readContentFromFile("/src/main.txt") + "', /copy '"
+                + fs.readContentFromFile("/copy/main.txt") + "'");
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        FileSystem fs = new FileSystem();
+
+        System.out.println("1. Basic operations:");
+        fs.mkdir("/a/b/c");
+        fs.addContentToFile("/a/b/c/d", "hello");
+        fs.addContentToFile("/a/b/c/d", " world");
+        System.out.println("  ls /: " + fs.ls("/"));
+        System.out.println("  ls /a/b/c/d: " + fs.ls("/a/b/c/d"));
+        System.out.println("  read /a/b/c/d: " + fs.readContentFromFile("/a/b/c/d"));
+        fs.cp("/a/b", "/copy/b");
+        fs.mv("/a/b/c", "/moved");
+        System.out.println("  ls /a/b after mv: " + fs.ls("/a/b"));
+        System.out.println("  read /moved/d: " + fs.readContentFromFile("/moved/d"));
+        System.out.println("  read /copy/b/c/d: " + fs.readContentFromFile("/copy/b/c/d"));
+        fs.mv("/a", "/a/b/a");
+        fs.rm("/moved");
+        fs.rm("/moved/d");
+        fs.rm("/moved");
+        System.out.println("  ls / after rm: " + fs.ls("/"));
+        System.out.println("  size of /: " + fs.getSize("/") + ", files: " + fs.getFileCount("/"));
+        System.out.println("---");
+
+        System.out.println("2. Quotas (/quota limited to 10 bytes):");
+        fs.mkdir("/quota/logs");
+        fs.setQuota("/quota", 10);
+        fs.addContentToFile("/quota/logs/app.log", "12345678");
+        fs.addContentToFile("/quota/logs/app.log", "abc");
+        fs.cp("/copy/b/c/d", "/quota/d");
+        fs.mv("/quota/logs/app.log", "/app.log");
+        fs.cp("/app.log", "/quota/app.log");
+        System.out.println("  /quota size: " + fs.getSize("/quota") + ", files: " + fs.getFileCount("/quota")
+                + "; / size: " + fs.getSize("/") + ", files: " + fs.getFileCount("/"));
+        System.out.println("---");
+
+        System.out.println("3. Concurrent stress (8 threads x 200,000 operations):");
+        stressTest(8, 200_000, 0);
+        stressTest(8, 200_000, 64);
+        System.out.println("---");
+
+        System.out.println("4. Mixed throughput (64 dirs x 64 files, 90% reads), one lock vs per-directory locks:");
+        for (int threads : new int[]{1, 4, 16}) {
+            System.out.printf("  %2d threads: %,.0f ops/s coarse, %,.0f ops/s concurrent%n", threads,
+                    benchmarkMixed(true, threads, 64, 64, 90, 500),
+                    benchmarkMixed(false, threads, 64, 64, 90, 500));
+        }
+        System.out.println("---");
+
+        System.out.println("5. getSize on a large tree:");
+        benchmarkGetSize(2_000, 100);
+        System.out.println("---");
+
+        System.out.println("6. Appending to and streaming a log file:");
+        benchmarkAppend(1_000_000, 100);
+        System.out.println("---");
+
+        System.out.println("7. Copy-on-write snapshots:");
+        benchmarkSnapshot(2_000, 100);
+        FileSystem copied = new FileSystem();
+        copied.addContentToFile("/a", "a".repeat(5_000));
+        copied.cp("/a", "/b");
+        copied.addContentToFile("/b", "b".repeat(4_000));
+        copied.addContentToFile("/b", "c".repeat(10_000));
+        System.out.println("  Appends across chunk boundaries after cp read back intact: "
+                + copied.readContentFromFile("/b").equals("a".repeat(5_000) + "b".repeat(4_000) + "c".repeat(10_000))
+                + ", source unchanged: " + copied.readContentFromFile("/a").equals("a".repeat(5_000)));
+        System.out.println("---");
+
+        System.out.println("8. Resolving a deep path:");
+        benchmarkPathResolution(32, 200_000);
+    }
 }
 
 /**
@@ -1,65 +1,3025 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class KeyValueStore<V> {
 
-    private final Map<String, Map<String, TreeMap<Long, V>>> data;
+    private static final long VERSION_OVERHEAD_BYTES = 12;
+
+    private static final int PARALLEL_GATHER_MIN_KEYS = 256;
+
+    private final List<Shard> shards;
+    private final RetentionPolicy retention;
+    private final LongSupplier clock;
+    private final Footprint<V> footprint;
+    private final Object compactionLock = new Object();
+    private Iterator<ConcurrentMap<String, VersionHistory<V>>> compactionKeys = Collections.emptyIterator();
+    private Iterator<VersionHistory<V>> compactionSubKeys = Collections.emptyIterator();
+    private ScheduledExecutorService compactor;
+    private volatile Spill spill;
+    private volatile Codec<V> compression;
+    private ScheduledExecutorService spillFlusher;
+    // The first failure of the background spill flusher not yet reported by flushColdVersions or stopSpillFlusher.
+    private final AtomicReference<Exception> spillFailure = new AtomicReference<>();
 
     public KeyValueStore() {
-        this.data = new ConcurrentHashMap<>();
+        this(RetentionPolicy.keepAll(), value -> 0, System::currentTimeMillis);
+    }
+
+    public KeyValueStore(RetentionPolicy retention) {
+        this(retention, value -> 0, System::currentTimeMillis);
+    }
+
+    public KeyValueStore(ShardConfig sharding) {
+        this(RetentionPolicy.keepAll(), value -> 0, System::currentTimeMillis, sharding);
+    }
+
+    /**
+     * weigher estimates a value's heap size for the byte limit; clock supplies the time the age limit is measured
+     * from, in the same unit as the timestamps passed to put.
+     */
+    public KeyValueStore(RetentionPolicy retention, ToLongFunction<? super V> weigher, LongSupplier clock) {
+        this(retention, weigher, clock, ShardConfig.unsharded());
+    }
+
+    public KeyValueStore(RetentionPolicy retention, ToLongFunction<? super V> weigher, LongSupplier clock,
+                         ShardConfig sharding) {
+        Objects.requireNonNull(sharding, "Sharding cannot be null");
+        List<Shard> partitions = new ArrayList<>(sharding.shardCount);
+        for (int i = 0; i < sharding.shardCount; i++) {
+            partitions.add(new Shard(sharding.singleWriter ? i : -1));
+        }
+        this.shards = Collections.unmodifiableList(partitions);
+        this.retention = Objects.requireNonNull(retention, "Retention cannot be null");
+        this.footprint = new Footprint<>(Objects.requireNonNull(weigher, "Weigher cannot be null"));
+        this.clock = Objects.requireNonNull(clock, "Clock cannot be null");
+    }
+
+    /**
+     * Limits on how much history the compactor keeps; 0 means no limit. The newest version of a subkey is never
+     * dropped, and the age limit keeps the version that was current at the cutoff, so reads at or after the
+     * cutoff stay exact. While the store is over maxBytes the compactor halves the older history of every subkey
+     * it visits. Spilled versions follow the same limits: a flush applies them to each subkey's segment and
+     * in-memory versions counted together, reads skip segment copies of versions that were dropped, and
+     * mergeSegments removes those copies from disk.
+     */
+    public static class RetentionPolicy {
+        private final int maxVersionsPerSubKey;
+        private final long maxAgeMillis;
+        private final long maxBytes;
+
+        private RetentionPolicy(int maxVersionsPerSubKey, long maxAgeMillis, long maxBytes) {
+            if (maxVersionsPerSubKey < 0 || maxAgeMillis < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("Retention limits cannot be negative");
+            }
+            this.maxVersionsPerSubKey = maxVersionsPerSubKey;
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxBytes = maxBytes;
+        }
+
+        public static RetentionPolicy keepAll() {
+            return new RetentionPolicy(0, 0, 0);
+        }
+
+        public RetentionPolicy withMaxVersionsPerSubKey(int maxVersionsPerSubKey) {
+            return new RetentionPolicy(maxVersionsPerSubKey, maxAgeMillis, maxBytes);
+        }
+
+        public RetentionPolicy withMaxAge(long maxAgeMillis) {
+            return new RetentionPolicy(maxVersionsPerSubKey, maxAgeMillis, maxBytes);
+        }
+
+        public RetentionPolicy withMaxBytes(long maxBytes) {
+            return new RetentionPolicy(maxVersionsPerSubKey, maxAgeMillis, maxBytes);
+        }
+
+        @Override
+        public String toString() {
+            return "RetentionPolicy{" +
+                    "maxVersionsPerSubKey=" + maxVersionsPerSubKey +
+                    ", maxAgeMillis=" + maxAgeMillis +
+                    ", maxBytes=" + maxBytes +
+                    '}';
+        }
+    }
+
+    /**
+     * How keys are partitioned. A hashed store splits the key1 space across shardCount independent maps so
+     * writers to different keys never touch the same map; with a single writer per shard, puts go onto the
+     * shard's lock-free queue and one thread per shard applies them, so no two threads ever contend on a
+     * shard's maps or histories.
+     */
+    public static class ShardConfig {
+        private final int shardCount;
+        private final boolean singleWriter;
+
+        private ShardConfig(int shardCount, boolean singleWriter) {
+            if (shardCount <= 0) {
+                throw new IllegalArgumentException("Shard count must be positive");
+            }
+            this.shardCount = shardCount;
+            this.singleWriter = singleWriter;
+        }
+
+        public static ShardConfig unsharded() {
+            return new ShardConfig(1, false);
+        }
+
+        public static ShardConfig hashed(int shardCount) {
+            return new ShardConfig(shardCount, false);
+        }
+
+        public ShardConfig withSingleWriter() {
+            return new ShardConfig(shardCount, true);
+        }
+
+        @Override
+        public String toString() {
+            return "ShardConfig{" +
+                    "shardCount=" + shardCount +
+                    ", singleWriter=" + singleWriter +
+                    '}';
+        }
+    }
+
+    // Work waiting in a single-writer shard's queue: one put, a batch's runs for the shard, or a barrier latch.
+    private static final class PendingPut<V> {
+        final String key1;
+        final String subKey;
+        final long timestamp;
+        final V value;
+        final List<Run> runs;
+        final CountDownLatch barrier;
+
+        PendingPut(String key1, String subKey, long timestamp, V value) {
+            this(key1, subKey, timestamp, value, null, null);
+        }
+
+        PendingPut(List<Run> runs) {
+            this(null, null, 0, null, runs, null);
+        }
+
+        PendingPut(CountDownLatch barrier) {
+            this(null, null, 0, null, null, barrier);
+        }
+
+        private PendingPut(String key1, String subKey, long timestamp, V value, List<Run> runs,
+                           CountDownLatch barrier) {
+            this.key1 = key1;
+            this.subKey = subKey;
+            this.timestamp = timestamp;
+            this.value = value;
+            this.runs = runs;
+            this.barrier = barrier;
+        }
+    }
+
+    /**
+     * One partition of the key1 space. Without a writer, callers apply puts directly. With one, callers only
+     * offer to the queue; the writer drains it and parks once it is empty, and a producer unparks it only when
+     * it has announced it is idle, so a busy writer costs producers a single CAS.
+     */
+    private final class Shard {
+        final ConcurrentMap<String, ConcurrentMap<String, VersionHistory<V>>> data = new ConcurrentHashMap<>();
+        final Queue<PendingPut<V>> ingest = new ConcurrentLinkedQueue<>();
+        final Thread writer;
+        // The first queued put that failed since the last awaitIngested or stopWriters reported one.
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final LongAdder failedPuts = new LongAdder();
+        volatile boolean running;
+        volatile boolean idle;
+
+        Shard(int writerIndex) {
+            if (writerIndex < 0) {
+                writer = null;
+                return;
+            }
+            running = true;
+            writer = new Thread(this::drain, "KeyValueStore-writer-" + writerIndex);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void submit(PendingPut<V> put) {
+            ingest.offer(put);
+            if (!running) {
+                // The writer may already have exited; apply whatever it left behind here instead.
+                applyQueued();
+            } else if (idle) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                if (!applyQueued()) {
+                    if (!running) {
+                        return;
+                    }
+                    idle = true;
+                    if (ingest.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                }
+            }
+        }
+
+        // Applies queued puts until the queue is empty; returns whether there was anything to apply.
+        private boolean applyQueued() {
+            boolean applied = false;
+            PendingPut<V> next;
+            while ((next = ingest.poll()) != null) {
+                applied = true;
+                if (next.barrier != null) {
+                    next.barrier.countDown();
+                    continue;
+                }
+                try {
+                    if (next.runs != null) {
+                        applyRuns(next.runs);
+                    } else {
+                        applyPut(next.key1, next.subKey, next.timestamp, next.value);
+                    }
+                } catch (RuntimeException e) {
+                    failedPuts.increment();
+                    failure.compareAndSet(null, e);
+                }
+            }
+            return applied;
+        }
+
+        CountDownLatch barrier() {
+            CountDownLatch latch = new CountDownLatch(1);
+            submit(new PendingPut<>(latch));
+            return latch;
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            LockSupport.unpark(writer);
+            writer.join();
+            applyQueued();
+        }
+    }
+
+    public static class RetentionStats {
+        private final long retainedVersions;
+        private final long estimatedBytes;
+        private final long versionsReclaimed;
+        private final long bytesReclaimed;
+
+        RetentionStats(long retainedVersions, long estimatedBytes, long versionsReclaimed, long bytesReclaimed) {
+            this.retainedVersions = retainedVersions;
+            this.estimatedBytes = estimatedBytes;
+            this.versionsReclaimed = versionsReclaimed;
+            this.bytesReclaimed = bytesReclaimed;
+        }
+
+        public long getRetainedVersions() {
+            return retainedVersions;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        public long getVersionsReclaimed() {
+            return versionsReclaimed;
+        }
+
+        public long getBytesReclaimed() {
+            return bytesReclaimed;
+        }
+
+        @Override
+        public String toString() {
+            return "RetentionStats{" +
+                    "retainedVersions=" + retainedVersions +
+                    ", estimatedBytes=" + estimatedBytes +
+                    ", versionsReclaimed=" + versionsReclaimed +
+                    ", bytesReclaimed=" + bytesReclaimed +
+                    '}';
+        }
+    }
+
+    // Store-wide version and byte counts, updated by each history under its own lock.
+    static final class Footprint<V> {
+        final ToLongFunction<? super V> weigher;
+        final LongAdder versions = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder versionsReclaimed = new LongAdder();
+        final LongAdder bytesReclaimed = new LongAdder();
+
+        Footprint(ToLongFunction<? super V> weigher) {
+            this.weigher = weigher;
+        }
+
+        long weigh(Object value) {
+            if (value instanceof Packed) {
+                return VERSION_OVERHEAD_BYTES + ((Packed<?>) value).bytesPerVersion;
+            }
+            @SuppressWarnings("unchecked")
+            V typed = (V) value;
+            return VERSION_OVERHEAD_BYTES + weigher.applyAsLong(typed);
+        }
+    }
+
+    // Versions of one subkey collected from a batch, in arrival order; ascending while each timestamp is
+    // greater than the one before it. While buffering only the count is kept; flush lays every run out as the
+    // slice [from, from + size) of columns shared by the whole batch.
+    static final class Run {
+        final String key1;
+        final String subKey;
+        final int hash;
+        int size;
+        boolean ascending = true;
+        long lastTimestamp;
+        long[] timestamps;
+        Object[] values;
+        int from;
+
+        Run(String key1, String subKey, int hash) {
+            this.key1 = key1;
+            this.subKey = subKey;
+            this.hash = hash;
+        }
+
+        boolean isFor(int hash, String key1, String subKey) {
+            return this.hash == hash && (this.key1 == key1 || this.key1.equals(key1))
+                    && (this.subKey == subKey || this.subKey.equals(subKey));
+        }
+
+        void add(long timestamp) {
+            if (size > 0 && timestamp <= lastTimestamp) {
+                ascending = false;
+            }
+            lastTimestamp = timestamp;
+            size++;
+        }
+    }
+
+    /**
+     * Versions of one subkey held in parallel timestamp and value columns sorted by timestamp, so a version costs
+     * one long and one reference instead of a boxed Long plus a map node. Writers serialize on the history;
+     * readers take the current columns and their published size without locking. An append (the common case,
+     * since timestamps mostly arrive in order) writes past size and then publishes the new size. Anything that
+     * would change existing slots, growth, an out-of-order insert or an overwrite, builds new columns and swaps
+     * them in, so slots below a published size never change and a view over them is a stable snapshot.
+     */
+    static final class VersionHistory<V> {
+        private static final int INITIAL_CAPACITY = 2;
+
+        private static final class Columns {
+            final long[] timestamps;
+            final Object[] values;
+            volatile int size;
+
+            Columns(long[] timestamps, Object[] values, int size) {
+                this.timestamps = timestamps;
+                this.values = values;
+                this.size = size;
+            }
+        }
+
+        private final Footprint<V> footprint;
+        private volatile Columns columns = new Columns(new long[INITIAL_CAPACITY], new Object[INITIAL_CAPACITY], 0);
+        private boolean retired;
+        // Set before any version is dropped from memory because a segment holds it.
+        private volatile boolean spilled;
+        // Every version with a timestamp <= persistedThrough is in a segment.
+        private long persistedThrough = Long.MIN_VALUE;
+        // Retention has dropped every version older than this, including copies still in a segment.
+        private volatile long retainedFrom = Long.MIN_VALUE;
+
+        VersionHistory(Footprint<V> footprint) {
+            this.footprint = footprint;
+        }
+
+        // Returns false once the history has been retired by a delete; the caller retries on the live one.
+        synchronized boolean put(long timestamp, V value) {
+            if (retired) {
+                return false;
+            }
+            insert(timestamp, value);
+            return true;
+        }
+
+        /**
+         * Adds a run of versions under one lock. A run in strictly increasing timestamp order that starts after
+         * the newest version is copied in with at most one growth and one footprint update; any other run is
+         * inserted version by version, in order, exactly as separate puts would be.
+         */
+        synchronized boolean putAll(Run run) {
+            if (retired) {
+                return false;
+            }
+            Columns current = columns;
+            int size = current.size;
+            int from = run.from;
+            int count = run.size;
+            if (!run.ascending || (size > 0 && run.timestamps[from] <= current.timestamps[size - 1])) {
+                for (int i = from; i < from + count; i++) {
+                    @SuppressWarnings("unchecked")
+                    V value = (V) run.values[i];
+                    insert(run.timestamps[i], value);
+                }
+                return true;
+            }
+            if (run.timestamps[from] <= persistedThrough) {
+                persistedThrough = run.timestamps[from] - 1;
+            }
+            long bytes = 0;
+            for (int i = from; i < from + count; i++) {
+                bytes += footprint.weigh(run.values[i]);
+            }
+            footprint.versions.add(count);
+            footprint.bytes.add(bytes);
+            if (size + count > current.timestamps.length) {
+                int capacity = Math.max(size + count, size + (size >> 1) + 1);
+                Columns grown = new Columns(Arrays.copyOf(current.timestamps, capacity),
+                        Arrays.copyOf(current.values, capacity), size);
+                System.arraycopy(run.timestamps, from, grown.timestamps, size, count);
+                System.arraycopy(run.values, from, grown.values, size, count);
+                grown.size = size + count;
+                columns = grown;
+            } else {
+                System.arraycopy(run.timestamps, from, current.timestamps, size, count);
+                System.arraycopy(run.values, from, current.values, size, count);
+                current.size = size + count;
+            }
+            return true;
+        }
+
+        private void insert(long timestamp, V value) {
+            if (timestamp <= persistedThrough) {
+                persistedThrough = timestamp - 1;
+            }
+            Columns current = columns;
+            int size = current.size;
+            if (size == 0 || timestamp > current.timestamps[size - 1]) {
+                footprint.versions.increment();
+                footprint.bytes.add(footprint.weigh(value));
+                if (size == current.timestamps.length) {
+                    int capacity = size + (size >> 1) + 1;
+                    Columns grown = new Columns(Arrays.copyOf(current.timestamps, capacity),
+                            Arrays.copyOf(current.values, capacity), size);
+                    grown.timestamps[size] = timestamp;
+                    grown.values[size] = value;
+                    grown.size = size + 1;
+                    columns = grown;
+                } else {
+                    current.timestamps[size] = timestamp;
+                    current.values[size] = value;
+                    current.size = size + 1;
+                }
+                return;
+            }
+            int index = Arrays.binarySearch(current.timestamps, 0, size, timestamp);
+            if (index >= 0) {
+                footprint.bytes.add(footprint.weigh(value) - footprint.weigh(current.values[index]));
+                Object[] values = Arrays.copyOf(current.values, current.values.length);
+                values[index] = value;
+                columns = new Columns(current.timestamps, values, size);
+                return;
+            }
+            footprint.versions.increment();
+            footprint.bytes.add(footprint.weigh(value));
+            int insertAt = -index - 1;
+            int capacity = size == current.timestamps.length ? size + (size >> 1) + 1 : current.timestamps.length;
+            long[] timestamps = new long[capacity];
+            Object[] values = new Object[capacity];
+            System.arraycopy(current.timestamps, 0, timestamps, 0, insertAt);
+            System.arraycopy(current.values, 0, values, 0, insertAt);
+            timestamps[insertAt] = timestamp;
+            values[insertAt] = value;
+            System.arraycopy(current.timestamps, insertAt, timestamps, insertAt + 1, size - insertAt);
+            System.arraycopy(current.values, insertAt, values, insertAt + 1, size - insertAt);
+            columns = new Columns(timestamps, values, size + 1);
+        }
+
+        /**
+         * Drops the oldest versions beyond maxVersions (0 = no limit), those superseded before cutoffTimestamp, and,
+         * if halve is set, half of the versions older than the newest. Spilled copies of the dropped versions are
+         * hidden from reads. Returns how many were dropped.
+         */
+        synchronized int trim(int maxVersions, long cutoffTimestamp, boolean halve) {
+            Columns current = columns;
+            int size = current.size;
+            if (retired || size <= 1) {
+                return 0;
+            }
+            int drop = retentionDrop(current.timestamps, size, maxVersions, cutoffTimestamp);
+            if (halve) {
+                drop = Math.min(Math.max(drop, size / 2), size - 1);
+            }
+            return dropOldest(current, size, drop);
+        }
+
+        /**
+         * Drops every version older than timestamp, except the newest, and hides any copies of them in segments.
+         * Returns how many versions left memory.
+         */
+        synchronized int retainFrom(long timestamp) {
+            if (retired || timestamp <= retainedFrom) {
+                return 0;
+            }
+            retainedFrom = timestamp;
+            Columns current = columns;
+            int size = current.size;
+            int drop = Math.min(floorIndex(current, size, timestamp - 1) + 1, size - 1);
+            return dropOldest(current, size, drop);
+        }
+
+        private int dropOldest(Columns current, int size, int drop) {
+            if (drop <= 0) {
+                return 0;
+            }
+            retainedFrom = Math.max(retainedFrom, current.timestamps[drop]);
+            long bytes = 0;
+            for (int i = 0; i < drop; i++) {
+                bytes += footprint.weigh(current.values[i]);
+            }
+            columns = new Columns(Arrays.copyOfRange(current.timestamps, drop, size),
+                    Arrays.copyOfRange(current.values, drop, size), size - drop);
+            footprint.versions.add(-drop);
+            footprint.bytes.add(-bytes);
+            footprint.versionsReclaimed.add(drop);
+            footprint.bytesReclaimed.add(bytes);
+            return drop;
+        }
+
+        /**
+         * How many of the oldest of size ascending timestamps the retention limits drop: those beyond maxVersions
+         * (0 = no limit) and those superseded at or before cutoffTimestamp. The newest is always kept.
+         */
+        static int retentionDrop(long[] timestamps, int size, int maxVersions, long cutoffTimestamp) {
+            int drop = maxVersions > 0 ? size - maxVersions : 0;
+            int index = Arrays.binarySearch(timestamps, 0, size, cutoffTimestamp);
+            drop = Math.max(drop, index >= 0 ? index : -index - 2);
+            return Math.min(drop, size - 1);
+        }
+
+        long retainedFrom() {
+            return retainedFrom;
+        }
+
+        // The timestamps currently in memory, oldest first.
+        long[] timestamps() {
+            Columns current = columns;
+            return Arrays.copyOf(current.timestamps, current.size);
+        }
+
+        /**
+         * Replaces every run of BLOCK_VERSIONS consecutive unpacked versions older than the newest with a packed
+         * block. Returns how many versions were packed.
+         */
+        synchronized int pack(Codec<V> codec) {
+            Columns current = columns;
+            int size = current.size;
+            if (retired || size <= Packed.BLOCK_VERSIONS) {
+                return 0;
+            }
+            Object[] values = null;
+            long bytes = 0;
+            int packed = 0;
+            int runStart = 0;
+            for (int i = 0; i < size - 1; i++) {
+                if (current.values[i] instanceof Packed) {
+                    runStart = i + 1;
+                } else if (i + 1 - runStart == Packed.BLOCK_VERSIONS) {
+                    Packed<V> block = Packed.pack(codec, current.timestamps, current.values, runStart, i + 1);
+                    if (values == null) {
+                        values = Arrays.copyOf(current.values, current.values.length);
+                    }
+                    for (int j = runStart; j <= i; j++) {
+                        bytes += footprint.weigh(block) - footprint.weigh(current.values[j]);
+                        values[j] = block;
+                    }
+                    packed += Packed.BLOCK_VERSIONS;
+                    runStart = i + 1;
+                }
+            }
+            if (values != null) {
+                columns = new Columns(current.timestamps, values, size);
+                footprint.bytes.add(bytes);
+            }
+            return packed;
+        }
+
+        // Takes the history out of the store's accounting; later puts to it are refused.
+        synchronized void retire() {
+            if (retired) {
+                return;
+            }
+            retired = true;
+            Columns current = columns;
+            int size = current.size;
+            long bytes = 0;
+            for (int i = 0; i < size; i++) {
+                bytes += footprint.weigh(current.values[i]);
+            }
+            footprint.versions.add(-size);
+            footprint.bytes.add(-bytes);
+        }
+
+        boolean hasSpilled() {
+            return spilled;
+        }
+
+        // Called when reopening segments with the newest version of the subkey read back from them.
+        synchronized void markPersisted(long timestamp) {
+            spilled = true;
+            persistedThrough = Math.max(persistedThrough, timestamp);
+        }
+
+        // Versions older than cutoffTimestamp that are not yet in a segment.
+        synchronized VersionView<V> unpersistedVersions(long cutoffTimestamp) {
+            Columns current = columns;
+            int size = current.size;
+            int index = Arrays.binarySearch(current.timestamps, 0, size, cutoffTimestamp);
+            int end = index >= 0 ? index : -index - 1;
+            return new VersionView<>(current.timestamps, current.values, floorIndex(current, size, persistedThrough) + 1, end);
+        }
+
+        /**
+         * Records that written is now in a segment and drops from memory every version a segment holds, except
+         * the newest. Versions overwritten or inserted since written was taken stay. Returns how many were dropped.
+         */
+        synchronized int removeSpilled(VersionView<V> written) {
+            Columns current = columns;
+            int size = current.size;
+            if (retired || size == 0) {
+                return 0;
+            }
+            long[] timestamps = new long[size];
+            Object[] values = new Object[size];
+            int kept = 0;
+            long bytes = 0;
+            long firstUnwritten = Long.MAX_VALUE;
+            int next = written.from;
+            for (int i = 0; i < size; i++) {
+                long timestamp = current.timestamps[i];
+                while (next < written.to && written.timestamps[next] < timestamp) {
+                    next++;
+                }
+                boolean persisted = timestamp <= persistedThrough || (next < written.to
+                        && written.timestamps[next] == timestamp && written.values[next] == current.values[i]);
+                if (!persisted) {
+                    firstUnwritten = Math.min(firstUnwritten, timestamp);
+                }
+                if (persisted && i < size - 1) {
+                    bytes += footprint.weigh(current.values[i]);
+                    continue;
+                }
+                timestamps[kept] = timestamp;
+                values[kept] = current.values[i];
+                kept++;
+            }
+            if (!written.isEmpty()) {
+                persistedThrough = Math.max(persistedThrough,
+                        Math.min(written.lastKey(), firstUnwritten == Long.MAX_VALUE ? Long.MAX_VALUE : firstUnwritten - 1));
+            }
+            int dropped = size - kept;
+            if (dropped == 0) {
+                return 0;
+            }
+            spilled = true;
+            columns = new Columns(Arrays.copyOf(timestamps, kept), Arrays.copyOf(values, kept), kept);
+            footprint.versions.add(-dropped);
+            footprint.bytes.add(-bytes);
+            return dropped;
+        }
+
+        private static int floorIndex(Columns current, int size, long timestamp) {
+            int index = Arrays.binarySearch(current.timestamps, 0, size, timestamp);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        // The newest version is never packed, so this only pays for a type check.
+        V latest() {
+            Columns current = columns;
+            int size = current.size;
+            return size == 0 ? null : Packed.valueOf(current.values[size - 1], current.timestamps[size - 1]);
+        }
+
+        V floor(long timestamp) {
+            Columns current = columns;
+            int index = floorIndex(current, current.size, timestamp);
+            return index < 0 ? null : Packed.valueOf(current.values[index], current.timestamps[index]);
+        }
+
+        NavigableMap<Long, V> view() {
+            Columns current = columns;
+            return new VersionView<>(current.timestamps, current.values, 0, current.size);
+        }
+
+        int size() {
+            return columns.size;
+        }
+    }
+
+    /**
+     * Read-only map over the slots [from, to) of a history's columns. Lookups, range, key and descending views
+     * binary-search or walk the shared arrays without copying.
+     */
+    static final class VersionView<V> extends AbstractMap<Long, V> implements NavigableMap<Long, V> {
+        private final long[] timestamps;
+        private final Object[] values;
+        private final int from;
+        private final int to;
+
+        VersionView(long[] timestamps, Object[] values, int from, int to) {
+            this.timestamps = timestamps;
+            this.values = values;
+            this.from = from;
+            this.to = Math.max(from, to);
+        }
+
+        private int search(long timestamp) {
+            return Arrays.binarySearch(timestamps, from, to, timestamp);
+        }
+
+        private int ceilingIndex(long timestamp) {
+            int index = search(timestamp);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        private int higherIndex(long timestamp) {
+            int index = search(timestamp);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+
+        private Entry<Long, V> entryAt(int index) {
+            return index < from || index >= to ? null : new SimpleImmutableEntry<>(timestamps[index], valueAt(index));
+        }
+
+        private Long keyAt(int index) {
+            return index < from || index >= to ? null : timestamps[index];
+        }
+
+        private V valueAt(int index) {
+            return Packed.valueOf(values[index], timestamps[index]);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Long && search((Long) key) >= 0;
+        }
+
+        @Override
+        public V get(Object key) {
+            if (!(key instanceof Long)) {
+                return null;
+            }
+            int index = search((Long) key);
+            return index >= 0 ? valueAt(index) : null;
+        }
+
+        @Override
+        public Set<Entry<Long, V>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Long, V>> iterator() {
+                    return new Iterator<>() {
+                        private final Packed.Reader<V> reader = new Packed.Reader<>();
+                        private int next = from;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < to;
+                        }
+
+                        @Override
+                        public Entry<Long, V> next() {
+                            if (next >= to) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next++;
+                            return new SimpleImmutableEntry<>(timestamps[index],
+                                    reader.valueOf(values[index], timestamps[index]));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return to - from;
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super Long> comparator() {
+            return null;
+        }
+
+        @Override
+        public Long firstKey() {
+            if (to == from) {
+                throw new NoSuchElementException();
+            }
+            return timestamps[from];
+        }
+
+        @Override
+        public Long lastKey() {
+            if (to == from) {
+                throw new NoSuchElementException();
+            }
+            return timestamps[to - 1];
+        }
+
+        @Override
+        public Entry<Long, V> firstEntry() {
+            return entryAt(from);
+        }
+
+        @Override
+        public Entry<Long, V> lastEntry() {
+            return entryAt(to - 1);
+        }
+
+        @Override
+        public Entry<Long, V> lowerEntry(Long key) {
+            return entryAt(ceilingIndex(key) - 1);
+        }
+
+        @Override
+        public Long lowerKey(Long key) {
+            return keyAt(ceilingIndex(key) - 1);
+        }
+
+        @Override
+        public Entry<Long, V> floorEntry(Long key) {
+            return entryAt(higherIndex(key) - 1);
+        }
+
+        @Override
+        public Long floorKey(Long key) {
+            return keyAt(higherIndex(key) - 1);
+        }
+
+        @Override
+        public Entry<Long, V> ceilingEntry(Long key) {
+            return entryAt(ceilingIndex(key));
+        }
+
+        @Override
+        public Long ceilingKey(Long key) {
+            return keyAt(ceilingIndex(key));
+        }
+
+        @Override
+        public Entry<Long, V> higherEntry(Long key) {
+            return entryAt(higherIndex(key));
+        }
+
+        @Override
+        public Long higherKey(Long key) {
+            return keyAt(higherIndex(key));
+        }
+
+        @Override
+        public Entry<Long, V> pollFirstEntry() {
+            throw new UnsupportedOperationException("Version views are read-only");
+        }
+
+        @Override
+        public Entry<Long, V> pollLastEntry() {
+            throw new UnsupportedOperationException("Version views are read-only");
+        }
+
+        @Override
+        public VersionView<V> subMap(Long fromKey, boolean fromInclusive, Long toKey, boolean toInclusive) {
+            if (fromKey > toKey) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            return new VersionView<>(timestamps, values,
+                    fromInclusive ? ceilingIndex(fromKey) : higherIndex(fromKey),
+                    toInclusive ? higherIndex(toKey) : ceilingIndex(toKey));
+        }
+
+        @Override
+        public VersionView<V> headMap(Long toKey, boolean inclusive) {
+            return new VersionView<>(timestamps, values, from, inclusive ? higherIndex(toKey) : ceilingIndex(toKey));
+        }
+
+        @Override
+        public VersionView<V> tailMap(Long fromKey, boolean inclusive) {
+            return new VersionView<>(timestamps, values, inclusive ? ceilingIndex(fromKey) : higherIndex(fromKey), to);
+        }
+
+        @Override
+        public SortedMap<Long, V> subMap(Long fromKey, Long toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<Long, V> headMap(Long toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<Long, V> tailMap(Long fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        @Override
+        public NavigableMap<Long, V> descendingMap() {
+            return new DescendingVersionView<>(this);
+        }
+
+        // Keys come straight from the timestamps column, so iterating them never decodes a value.
+        @Override
+        public NavigableSet<Long> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<Long> navigableKeySet() {
+            return new VersionKeySet(this, false);
+        }
+
+        @Override
+        public NavigableSet<Long> descendingKeySet() {
+            return new VersionKeySet(this, true);
+        }
+    }
+
+    /**
+     * The same slots as a VersionView in newest-first order; every lookup is the mirrored one on the ascending view.
+     */
+    private static final class DescendingVersionView<V> extends AbstractMap<Long, V> implements NavigableMap<Long, V> {
+        private final VersionView<V> ascending;
+
+        DescendingVersionView(VersionView<V> ascending) {
+            this.ascending = ascending;
+        }
+
+        @Override
+        public int size() {
+            return ascending.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return ascending.containsKey(key);
+        }
+
+        @Override
+        public V get(Object key) {
+            return ascending.get(key);
+        }
+
+        @Override
+        public Set<Entry<Long, V>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Long, V>> iterator() {
+                    return new Iterator<>() {
+                        private final Packed.Reader<V> reader = new Packed.Reader<>();
+                        private int next = ascending.to - 1;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next >= ascending.from;
+                        }
+
+                        @Override
+                        public Entry<Long, V> next() {
+                            if (next < ascending.from) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next--;
+                            return new SimpleImmutableEntry<>(ascending.timestamps[index],
+                                    reader.valueOf(ascending.values[index], ascending.timestamps[index]));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ascending.size();
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super Long> comparator() {
+            return Collections.reverseOrder();
+        }
+
+        @Override
+        public Long firstKey() {
+            return ascending.lastKey();
+        }
+
+        @Override
+        public Long lastKey() {
+            return ascending.firstKey();
+        }
+
+        @Override
+        public Entry<Long, V> firstEntry() {
+            return ascending.lastEntry();
+        }
+
+        @Override
+        public Entry<Long, V> lastEntry() {
+            return ascending.firstEntry();
+        }
+
+        @Override
+        public Entry<Long, V> lowerEntry(Long key) {
+            return ascending.higherEntry(key);
+        }
+
+        @Override
+        public Long lowerKey(Long key) {
+            return ascending.higherKey(key);
+        }
+
+        @Override
+        public Entry<Long, V> floorEntry(Long key) {
+            return ascending.ceilingEntry(key);
+        }
+
+        @Override
+        public Long floorKey(Long key) {
+            return ascending.ceilingKey(key);
+        }
+
+        @Override
+        public Entry<Long, V> ceilingEntry(Long key) {
+            return ascending.floorEntry(key);
+        }
+
+        @Override
+        public Long ceilingKey(Long key) {
+            return ascending.floorKey(key);
+        }
+
+        @Override
+        public Entry<Long, V> higherEntry(Long key) {
+            return ascending.lowerEntry(key);
+        }
+
+        @Override
+        public Long higherKey(Long key) {
+            return ascending.lowerKey(key);
+        }
+
+        @Override
+        public Entry<Long, V> pollFirstEntry() {
+            throw new UnsupportedOperationException("Version views are read-only");
+        }
+
+        @Override
+        public Entry<Long, V> pollLastEntry() {
+            throw new UnsupportedOperationException("Version views are read-only");
+        }
+
+        @Override
+        public NavigableMap<Long, V> subMap(Long fromKey, boolean fromInclusive, Long toKey, boolean toInclusive) {
+            if (fromKey < toKey) {
+                throw new IllegalArgumentException("fromKey < toKey");
+            }
+            return new DescendingVersionView<>(ascending.subMap(toKey, toInclusive, fromKey, fromInclusive));
+        }
+
+        @Override
+        public NavigableMap<Long, V> headMap(Long toKey, boolean inclusive) {
+            return new DescendingVersionView<>(ascending.tailMap(toKey, inclusive));
+        }
+
+        @Override
+        public NavigableMap<Long, V> tailMap(Long fromKey, boolean inclusive) {
+            return new DescendingVersionView<>(ascending.headMap(fromKey, inclusive));
+        }
+
+        @Override
+        public SortedMap<Long, V> subMap(Long fromKey, Long toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<Long, V> headMap(Long toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<Long, V> tailMap(Long fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        @Override
+        public NavigableMap<Long, V> descendingMap() {
+            return ascending;
+        }
+
+        @Override
+        public NavigableSet<Long> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<Long> navigableKeySet() {
+            return new VersionKeySet(ascending, true);
+        }
+
+        @Override
+        public NavigableSet<Long> descendingKeySet() {
+            return new VersionKeySet(ascending, false);
+        }
+    }
+
+    /**
+     * Read-only set over the timestamps of a VersionView, in either direction.
+     */
+    private static final class VersionKeySet extends AbstractSet<Long> implements NavigableSet<Long> {
+        private final VersionView<?> view;
+        private final boolean descending;
+
+        VersionKeySet(VersionView<?> view, boolean descending) {
+            this.view = view;
+            this.descending = descending;
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return new Iterator<>() {
+                private int next = descending ? view.to - 1 : view.from;
+
+                @Override
+                public boolean hasNext() {
+                    return descending ? next >= view.from : next < view.to;
+                }
+
+                @Override
+                public Long next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return view.timestamps[descending ? next-- : next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return view.size();
+        }
+
+        @Override
+        public boolean contains(Object key) {
+            return view.containsKey(key);
+        }
+
+        @Override
+        public Comparator<? super Long> comparator() {
+            return descending ? Collections.reverseOrder() : null;
+        }
+
+        @Override
+        public Long first() {
+            return descending ? view.lastKey() : view.firstKey();
+        }
+
+        @Override
+        public Long last() {
+            return descending ? view.firstKey() : view.lastKey();
+        }
+
+        @Override
+        public Long lower(Long key) {
+            return descending ? view.higherKey(key) : view.lowerKey(key);
+        }
+
+        @Override
+        public Long floor(Long key) {
+            return descending ? view.ceilingKey(key) : view.floorKey(key);
+        }
+
+        @Override
+        public Long ceiling(Long key) {
+            return descending ? view.floorKey(key) : view.ceilingKey(key);
+        }
+
+        @Override
+        public Long higher(Long key) {
+            return descending ? view.lowerKey(key) : view.higherKey(key);
+        }
+
+        @Override
+        public Long pollFirst() {
+            throw new UnsupportedOperationException("Version views are read-only");
+        }
+
+        @Override
+        public Long pollLast() {
+            throw new UnsupportedOperationException("Version views are read-only");
+        }
+
+        @Override
+        public NavigableSet<Long> descendingSet() {
+            return new VersionKeySet(view, !descending);
+        }
+
+        @Override
+        public Iterator<Long> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<Long> subSet(Long fromElement, boolean fromInclusive, Long toElement, boolean toInclusive) {
+            if (descending) {
+                if (fromElement < toElement) {
+                    throw new IllegalArgumentException("fromElement < toElement");
+                }
+                return new VersionKeySet(view.subMap(toElement, toInclusive, fromElement, fromInclusive), true);
+            }
+            return new VersionKeySet(view.subMap(fromElement, fromInclusive, toElement, toInclusive), false);
+        }
+
+        @Override
+        public NavigableSet<Long> headSet(Long toElement, boolean inclusive) {
+            VersionView<?> range = descending ? view.tailMap(toElement, inclusive) : view.headMap(toElement, inclusive);
+            return new VersionKeySet(range, descending);
+        }
+
+        @Override
+        public NavigableSet<Long> tailSet(Long fromElement, boolean inclusive) {
+            VersionView<?> range = descending
+                    ? view.headMap(fromElement, inclusive)
+                    : view.tailMap(fromElement, inclusive);
+            return new VersionKeySet(range, descending);
+        }
+
+        @Override
+        public SortedSet<Long> subSet(Long fromElement, Long toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<Long> headSet(Long toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<Long> tailSet(Long fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+
+    /**
+     * One version of one subkey to write, as passed to putAll.
+     */
+    public static class Put<V> {
+        private final String key1;
+        private final String subKey;
+        private final long timestamp;
+        private final V value;
+
+        public Put(String key1, String subKey, long timestamp, V value) {
+            this.key1 = key1;
+            this.subKey = subKey;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        public String getKey1() {
+            return key1;
+        }
+
+        public String getSubKey() {
+            return subKey;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Put{" +
+                    "key1='" + key1 + '\'' +
+                    ", subKey='" + subKey + '\'' +
+                    ", timestamp=" + timestamp +
+                    ", value=" + value +
+                    '}';
+        }
+    }
+
+    /**
+     * One version of one subkey, as produced by a change feed.
+     */
+    public static class Change<V> {
+        private final String subKey;
+        private final long timestamp;
+        private final V value;
+
+        Change(String subKey, long timestamp, V value) {
+            this.subKey = subKey;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        public String getSubKey() {
+            return subKey;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Change{" +
+                    "subKey='" + subKey + '\'' +
+                    ", timestamp=" + timestamp +
+                    ", value=" + value +
+                    '}';
+        }
+    }
+
+    /**
+     * Merges the time-ordered columns of several subkeys into one time-ordered stream, holding one cursor per
+     * subkey in a heap; ties are broken by subkey so the order is deterministic.
+     */
+    private static final class ChangeFeed<V> implements Iterator<Change<V>> {
+        private static final class Cursor {
+            final String subKey;
+            final long[] timestamps;
+            final Object[] values;
+            final Packed.Reader<Object> reader = new Packed.Reader<>();
+            final int end;
+            int index;
+
+            Cursor(String subKey, VersionView<?> view) {
+                this.subKey = subKey;
+                this.timestamps = view.timestamps;
+                this.values = view.values;
+                this.index = view.from;
+                this.end = view.to;
+            }
+        }
+
+        private final PriorityQueue<Cursor> cursors = new PriorityQueue<>((a, b) -> {
+            int order = Long.compare(a.timestamps[a.index], b.timestamps[b.index]);
+            return order != 0 ? order : a.subKey.compareTo(b.subKey);
+        });
+
+        ChangeFeed(Map<String, VersionHistory<V>> subKeyMap,
+                BiFunction<String, VersionHistory<V>, VersionView<V>> ranges) {
+            subKeyMap.forEach((subKey, history) -> {
+                VersionView<V> range = ranges.apply(subKey, history);
+                if (!range.isEmpty()) {
+                    cursors.add(new Cursor(subKey, range));
+                }
+            });
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !cursors.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Change<V> next() {
+            Cursor cursor = cursors.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            long timestamp = cursor.timestamps[cursor.index];
+            Change<V> change = new Change<>(cursor.subKey, timestamp,
+                    (V) cursor.reader.valueOf(cursor.values[cursor.index], timestamp));
+            if (++cursor.index < cursor.end) {
+                cursors.add(cursor);
+            }
+            return change;
+        }
+    }
+
+    /**
+     * Read-only map over the live subkeys of a key. Subkeys are looked up as they are accessed and each value is
+     * produced by resolve, so reading a few fields of a wide row costs nothing for the rest. A subkey whose history
+     * is still empty is not part of the map; size only checks each history's length and resolves nothing.
+     */
+    private static final class SubKeyView<V, R> extends AbstractMap<String, R> {
+        private final Map<String, VersionHistory<V>> subKeyMap;
+        private final BiFunction<String, VersionHistory<V>, R> resolve;
+
+        SubKeyView(Map<String, VersionHistory<V>> subKeyMap, BiFunction<String, VersionHistory<V>, R> resolve) {
+            this.subKeyMap = subKeyMap;
+            this.resolve = resolve;
+        }
+
+        // Histories only ever become empty by being removed from the map, so a present subkey always resolves.
+        private static boolean present(VersionHistory<?> history) {
+            return history != null && history.size() != 0;
+        }
+
+        @Override
+        public R get(Object subKey) {
+            VersionHistory<V> history = subKeyMap.get(subKey);
+            return present(history) ? resolve.apply((String) subKey, history) : null;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for (VersionHistory<V> history : subKeyMap.values()) {
+                if (present(history)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean containsKey(Object subKey) {
+            return get(subKey) != null;
+        }
+
+        @Override
+        public Set<Entry<String, R>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, R>> iterator() {
+                    Iterator<Entry<String, VersionHistory<V>>> histories = subKeyMap.entrySet().iterator();
+                    return new Iterator<>() {
+                        private Entry<String, R> next = advance();
+
+                        // Skips histories a concurrent put has created but not yet filled.
+                        private Entry<String, R> advance() {
+                            while (histories.hasNext()) {
+                                Entry<String, VersionHistory<V>> entry = histories.next();
+                                if (present(entry.getValue())) {
+                                    return new SimpleImmutableEntry<>(entry.getKey(),
+                                            resolve.apply(entry.getKey(), entry.getValue()));
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        @Override
+                        public Entry<String, R> next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, R> current = next;
+                            next = advance();
+                            return current;
+                        }
+                    };
+                }
+
+                // Uses the same test as iteration, so subkeys it skips are not counted either.
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (VersionHistory<V> history : subKeyMap.values()) {
+                        if (present(history)) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+
+    /**
+     * Converts values to and from the bytes stored in segment files and compressed version blocks.
+     */
+    public interface Codec<V> {
+        byte[] encode(V value);
+
+        V decode(byte[] bytes);
+
+        Codec<String> UTF8 = new Codec<>() {
+            @Override
+            public byte[] encode(String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(byte[] bytes) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * Consecutive older versions of one subkey serialized into a single byte array. Timestamps are stored as
+     * varint deltas and each value as what differs from the version before it: the lengths of the shared prefix
+     * and suffix, then the bytes in between. The block is then deflated, which also shares repeats further back,
+     * unless that would make it larger. Every history slot of a packed version points at its block, and reading
+     * one decodes the block and picks the version out by timestamp.
+     */
+    static final class Packed<V> {
+        static final int BLOCK_VERSIONS = 32;
+        // Object headers, fields and the array header of a block, spread over its versions.
+        private static final int BLOCK_OVERHEAD_BYTES = 64;
+        // zlib streams are costly to set up, so each thread keeps one of each and resets it between blocks.
+        private static final ThreadLocal<Deflater> DEFLATER =
+                ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+        private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+        private final Codec<V> codec;
+        private final byte[] bytes;
+        private final boolean deflated;
+        private final int encodedLength;
+        private final int count;
+        final long bytesPerVersion;
+
+        private Packed(Codec<V> codec, byte[] bytes, boolean deflated, int encodedLength, int count) {
+            this.codec = codec;
+            this.bytes = bytes;
+            this.deflated = deflated;
+            this.encodedLength = encodedLength;
+            this.count = count;
+            this.bytesPerVersion = (BLOCK_OVERHEAD_BYTES + bytes.length) / count;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> Packed<V> pack(Codec<V> codec, long[] timestamps, Object[] values, int from, int to) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            long previousTimestamp = 0;
+            byte[] previous = new byte[0];
+            for (int i = from; i < to; i++) {
+                byte[] current = codec.encode((V) values[i]);
+                int shared = Math.min(previous.length, current.length);
+                int prefix = 0;
+                while (prefix < shared && previous[prefix] == current[prefix]) {
+                    prefix++;
+                }
+                int suffix = 0;
+                while (suffix < shared - prefix
+                        && previous[previous.length - 1 - suffix] == current[current.length - 1 - suffix]) {
+                    suffix++;
+                }
+                writeVarLong(encoded, zigZag(timestamps[i] - previousTimestamp));
+                writeVarLong(encoded, prefix);
+                writeVarLong(encoded, suffix);
+                writeVarLong(encoded, current.length - prefix - suffix);
+                encoded.write(current, prefix, current.length - prefix - suffix);
+                previousTimestamp = timestamps[i];
+                previous = current;
+            }
+            byte[] raw = encoded.toByteArray();
+            byte[] compressed = deflate(raw);
+            return compressed.length < raw.length
+                    ? new Packed<>(codec, compressed, true, raw.length, to - from)
+                    : new Packed<>(codec, raw, false, raw.length, to - from);
+        }
+
+        // Returns the value of slot, which holds either a value or the block the version at timestamp is in.
+        @SuppressWarnings("unchecked")
+        static <V> V valueOf(Object slot, long timestamp) {
+            return slot instanceof Packed ? ((Packed<V>) slot).scan(timestamp, null, null) : (V) slot;
+        }
+
+        VersionView<V> decode() {
+            long[] timestamps = new long[count];
+            Object[] values = new Object[count];
+            scan(0, timestamps, values);
+            return new VersionView<>(timestamps, values, 0, count);
+        }
+
+        /**
+         * Walks the block rebuilding each version's bytes from the one before. With output arrays every version is
+         * decoded into them; without, only the version at wanted is decoded and returned (null if absent).
+         */
+        private V scan(long wanted, long[] timestamps, Object[] values) {
+            ByteBuffer in = ByteBuffer.wrap(deflated ? inflate(bytes, encodedLength) : bytes);
+            long timestamp = 0;
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                timestamp += unZigZag(readVarLong(in));
+                int prefix = (int) readVarLong(in);
+                int suffix = (int) readVarLong(in);
+                int middle = (int) readVarLong(in);
+                byte[] current = new byte[prefix + middle + suffix];
+                System.arraycopy(previous, 0, current, 0, prefix);
+                in.get(current, prefix, middle);
+                System.arraycopy(previous, previous.length - suffix, current, prefix + middle, suffix);
+                if (timestamps != null) {
+                    timestamps[i] = timestamp;
+                    values[i] = codec.decode(current);
+                } else if (timestamp == wanted) {
+                    return codec.decode(current);
+                } else if (timestamp > wanted) {
+                    return null;
+                }
+                previous = current;
+            }
+            return null;
+        }
+
+        /**
+         * Resolves slots while walking a history in order, decoding each block once rather than once per version.
+         */
+        static final class Reader<V> {
+            private Packed<V> block;
+            private VersionView<V> decoded;
+
+            @SuppressWarnings("unchecked")
+            V valueOf(Object slot, long timestamp) {
+                if (!(slot instanceof Packed)) {
+                    return (V) slot;
+                }
+                if (slot != block) {
+                    block = (Packed<V>) slot;
+                    decoded = block.decode();
+                }
+                return decoded.get(timestamp);
+            }
+        }
+
+        private static byte[] deflate(byte[] raw) {
+            Deflater deflater = DEFLATER.get();
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+                byte[] buffer = new byte[1024];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.reset();
+            }
+        }
+
+        private static byte[] inflate(byte[] compressed, int length) {
+            Inflater inflater = INFLATER.get();
+            try {
+                inflater.setInput(compressed);
+                byte[] raw = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    int n = inflater.inflate(raw, read, length - read);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IllegalStateException("Truncated version block");
+                    }
+                    read += n;
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt version block", e);
+            } finally {
+                inflater.reset();
+            }
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private static void writeVarLong(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private static long readVarLong(ByteBuffer in) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable file of versions sorted by key1, subKey and timestamp, with keys compared as unsigned UTF-8 bytes,
+     * read through a memory mapping. Every INDEX_INTERVAL-th record is also kept in an in-heap sparse index, so a
+     * floor lookup binary-searches the index and then scans at most INDEX_INTERVAL records, a bounded number of
+     * pages. Tombstones carried by a segment hide versions of deleted keys in segments with id <= their watermark.
+     * <p>
+     * Layout: records [k1len][k1][sklen][sk][timestamp][vlen][value], then the index entries
+     * [k1len][k1][sklen][sk][timestamp][offset], then the tombstones [len][key][watermark], then a fixed footer.
+     */
+    private static final class Segment {
+        private static final int INDEX_INTERVAL = 16;
+        private static final int FOOTER_BYTES = 24;
+        private static final int MAGIC = 0x4b565347;
+
+        final long id;
+        final Path path;
+        final ByteBuffer buffer;
+        final int dataEnd;
+        final long maxTimestamp;
+        final Map<String, Long> tombstones = new HashMap<>();
+        private final byte[][] indexKey1;
+        private final byte[][] indexSubKey;
+        private final long[] indexTimestamp;
+        private final int[] indexOffset;
+
+        private Segment(long id, Path path, ByteBuffer buffer) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+            int footer = buffer.capacity() - FOOTER_BYTES;
+            if (footer < 0 || buffer.getInt(footer + 20) != MAGIC) {
+                throw new IOException("Corrupt segment " + path);
+            }
+            this.dataEnd = buffer.getInt(footer);
+            int indexCount = buffer.getInt(footer + 4);
+            int tombstoneCount = buffer.getInt(footer + 8);
+            this.maxTimestamp = buffer.getLong(footer + 12);
+            this.indexKey1 = new byte[indexCount][];
+            this.indexSubKey = new byte[indexCount][];
+            this.indexTimestamp = new long[indexCount];
+            this.indexOffset = new int[indexCount];
+            ByteBuffer in = buffer.duplicate().position(dataEnd);
+            for (int i = 0; i < indexCount; i++) {
+                indexKey1[i] = readBytes(in);
+                indexSubKey[i] = readBytes(in);
+                indexTimestamp[i] = in.getLong();
+                indexOffset[i] = in.getInt();
+            }
+            for (int i = 0; i < tombstoneCount; i++) {
+                tombstones.put(new String(readBytes(in), StandardCharsets.UTF_8), in.getLong());
+            }
+        }
+
+        static Segment open(long id, Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new Segment(id, path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        private static byte[] readBytes(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return bytes;
+        }
+
+        // Offset of the last record of (key1, subKey) with a timestamp <= timestamp, or -1.
+        int floor(byte[] key1, byte[] subKey, long timestamp) {
+            int low = 0;
+            int high = indexOffset.length - 1;
+            int start = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compareIndex(mid, key1, subKey, timestamp) <= 0) {
+                    start = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (start < 0) {
+                return -1;
+            }
+            int found = -1;
+            for (int position = indexOffset[start]; position < dataEnd; position = next(position)) {
+                int order = compareGroup(position, key1, subKey);
+                if (order > 0 || (order == 0 && timestampAt(position) > timestamp)) {
+                    break;
+                }
+                if (order == 0) {
+                    found = position;
+                }
+            }
+            return found;
+        }
+
+        // Offset of the first record of (key1, subKey) with a timestamp >= timestamp, or -1.
+        int ceiling(byte[] key1, byte[] subKey, long timestamp) {
+            int low = 0;
+            int high = indexOffset.length - 1;
+            int start = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compareIndex(mid, key1, subKey, timestamp) < 0) {
+                    start = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            for (int position = start < indexOffset.length ? indexOffset[start] : dataEnd; position < dataEnd;
+                    position = next(position)) {
+                int order = compareGroup(position, key1, subKey);
+                if (order > 0) {
+                    break;
+                }
+                if (order == 0 && timestampAt(position) >= timestamp) {
+                    return position;
+                }
+            }
+            return -1;
+        }
+
+        // Offset of the record after position if it belongs to the same (key1, subKey), or -1.
+        int nextInGroup(int position, byte[] key1, byte[] subKey) {
+            int next = next(position);
+            return next < dataEnd && compareGroup(next, key1, subKey) == 0 ? next : -1;
+        }
+
+        // Timestamps of every record of (key1, subKey), oldest first.
+        long[] timestamps(byte[] key1, byte[] subKey) {
+            long[] found = new long[0];
+            int count = 0;
+            for (int position = ceiling(key1, subKey, Long.MIN_VALUE); position >= 0;
+                    position = nextInGroup(position, key1, subKey)) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, Math.max(4, count * 2));
+                }
+                found[count++] = timestampAt(position);
+            }
+            return Arrays.copyOf(found, count);
+        }
+
+        private int compareIndex(int index, byte[] key1, byte[] subKey, long timestamp) {
+            int order = Arrays.compareUnsigned(indexKey1[index], key1);
+            if (order == 0) {
+                order = Arrays.compareUnsigned(indexSubKey[index], subKey);
+            }
+            return order != 0 ? order : Long.compare(indexTimestamp[index], timestamp);
+        }
+
+        private int compareGroup(int position, byte[] key1, byte[] subKey) {
+            int key1Length = buffer.getInt(position);
+            int order = compareUnsigned(position + 4, key1Length, key1);
+            if (order != 0) {
+                return order;
+            }
+            int subKeyPosition = position + 4 + key1Length;
+            return compareUnsigned(subKeyPosition + 4, buffer.getInt(subKeyPosition), subKey);
+        }
+
+        private int compareUnsigned(int position, int length, byte[] other) {
+            int common = Math.min(length, other.length);
+            for (int i = 0; i < common; i++) {
+                int order = Byte.compareUnsigned(buffer.get(position + i), other[i]);
+                if (order != 0) {
+                    return order;
+                }
+            }
+            return Integer.compare(length, other.length);
+        }
+
+        int next(int position) {
+            int valuePosition = timestampPosition(position) + 8;
+            return valuePosition + 4 + buffer.getInt(valuePosition);
+        }
+
+        private int timestampPosition(int position) {
+            int subKeyPosition = position + 4 + buffer.getInt(position);
+            return subKeyPosition + 4 + buffer.getInt(subKeyPosition);
+        }
+
+        long timestampAt(int position) {
+            return buffer.getLong(timestampPosition(position));
+        }
+
+        byte[] key1At(int position) {
+            byte[] key1 = new byte[buffer.getInt(position)];
+            buffer.get(position + 4, key1);
+            return key1;
+        }
+
+        byte[] subKeyAt(int position) {
+            int subKeyPosition = position + 4 + buffer.getInt(position);
+            byte[] subKey = new byte[buffer.getInt(subKeyPosition)];
+            buffer.get(subKeyPosition + 4, subKey);
+            return subKey;
+        }
+
+        byte[] valueAt(int position) {
+            int valuePosition = timestampPosition(position) + 8;
+            byte[] value = new byte[buffer.getInt(valuePosition)];
+            buffer.get(valuePosition + 4, value);
+            return value;
+        }
+    }
+
+    private static final class SegmentWriter {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        private final DataOutputStream index = new DataOutputStream(indexBytes);
+        private int offset;
+        private int records;
+        private int indexCount;
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        SegmentWriter(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        }
+
+        void append(byte[] key1, byte[] subKey, long timestamp, byte[] value) throws IOException {
+            if (records % Segment.INDEX_INTERVAL == 0) {
+                writeBytes(index, key1);
+                writeBytes(index, subKey);
+                index.writeLong(timestamp);
+                index.writeInt(offset);
+                indexCount++;
+            }
+            writeBytes(out, key1);
+            writeBytes(out, subKey);
+            out.writeLong(timestamp);
+            writeBytes(out, value);
+            offset += 20 + key1.length + subKey.length + value.length;
+            records++;
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+
+        int size() {
+            return offset;
+        }
+
+        void finish(Map<String, Long> tombstones) throws IOException {
+            indexBytes.writeTo(out);
+            for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+                writeBytes(out, tombstone.getKey().getBytes(StandardCharsets.UTF_8));
+                out.writeLong(tombstone.getValue());
+            }
+            out.writeInt(offset);
+            out.writeInt(indexCount);
+            out.writeInt(tombstones.size());
+            out.writeLong(maxTimestamp);
+            out.writeInt(Segment.MAGIC);
+            out.flush();
+            channel.force(true);
+            out.close();
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Cold versions moved off the heap into segment files. Every subkey keeps its newest version in memory, so
+     * existence checks and getLatestValue never read a segment; a point read goes to the segments only when the
+     * subkey has spilled versions and memory holds nothing at or after the newest spilled timestamp. Flushes,
+     * merges and deletes are serialized on the spill, so a tombstone's watermark cleanly separates the segments
+     * written before a delete from those written after it.
+     */
+    private class Spill {
+        private static final String SEGMENT_PREFIX = "segment-";
+        private static final String SEGMENT_SUFFIX = ".seg";
+        private static final int SEGMENT_MAX_BYTES = 1 << 30;
+
+        private final Path directory;
+        private final Codec<V> codec;
+        // Newest first; replaced, never modified.
+        private volatile List<Segment> segments = Collections.emptyList();
+        private volatile long maxTimestamp = Long.MIN_VALUE;
+        private final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+        private final Map<String, Long> pendingTombstones = new HashMap<>();
+        private long nextSegmentId = 1;
+
+        Spill(Path directory, Codec<V> codec) {
+            this.directory = directory;
+            this.codec = codec;
+        }
+
+        Optional<V> floor(String key1, String subKey, VersionHistory<V> history, long timestamp) {
+            // Memory before the spilled flag: a history only drops versions after the flag and segments are set.
+            Map.Entry<Long, V> inMemory = history.view().floorEntry(timestamp);
+            if (!history.hasSpilled() || (inMemory != null && inMemory.getKey() >= maxTimestamp)) {
+                return inMemory == null ? Optional.empty() : Optional.of(inMemory.getValue());
+            }
+            long hiddenUpTo = hiddenUpTo(key1, subKey);
+            long retainedFrom = history.retainedFrom();
+            byte[] key1Bytes = key1.getBytes(StandardCharsets.UTF_8);
+            byte[] subKeyBytes = subKey.getBytes(StandardCharsets.UTF_8);
+            long bestTimestamp = inMemory == null ? Long.MIN_VALUE : inMemory.getKey();
+            V best = inMemory == null ? null : inMemory.getValue();
+            for (Segment segment : segments) {
+                if (segment.id <= hiddenUpTo) {
+                    break;
+                }
+                int position = segment.floor(key1Bytes, subKeyBytes, timestamp);
+                if (position >= 0 && segment.timestampAt(position) >= retainedFrom
+                        && (best == null || segment.timestampAt(position) > bestTimestamp)) {
+                    bestTimestamp = segment.timestampAt(position);
+                    best = codec.decode(segment.valueAt(position));
+                }
+            }
+            return Optional.ofNullable(best);
+        }
+
+        /**
+         * The versions of the subkey with fromInclusive <= timestamp <= toInclusive from memory and the segments
+         * together, copied out of the segments; a history that has never spilled is returned as a view.
+         */
+        VersionView<V> range(String key1, String subKey, VersionHistory<V> history, long fromInclusive,
+                long toInclusive) {
+            // Memory before the spilled flag, as in floor.
+            NavigableMap<Long, V> inMemory = history.view().subMap(fromInclusive, true, toInclusive, true);
+            if (!history.hasSpilled()) {
+                return (VersionView<V>) inMemory;
+            }
+            TreeMap<Long, V> merged = new TreeMap<>(inMemory);
+            long hiddenUpTo = hiddenUpTo(key1, subKey);
+            long from = Math.max(fromInclusive, history.retainedFrom());
+            byte[] key1Bytes = key1.getBytes(StandardCharsets.UTF_8);
+            byte[] subKeyBytes = subKey.getBytes(StandardCharsets.UTF_8);
+            for (Segment segment : segments) {
+                if (segment.id <= hiddenUpTo) {
+                    break;
+                }
+                for (int position = segment.ceiling(key1Bytes, subKeyBytes, from); position >= 0
+                        && segment.timestampAt(position) <= toInclusive;
+                        position = segment.nextInGroup(position, key1Bytes, subKeyBytes)) {
+                    long timestamp = segment.timestampAt(position);
+                    if (!merged.containsKey(timestamp)) {
+                        merged.put(timestamp, codec.decode(segment.valueAt(position)));
+                    }
+                }
+            }
+            long[] timestamps = new long[merged.size()];
+            Object[] values = new Object[merged.size()];
+            int i = 0;
+            for (Map.Entry<Long, V> version : merged.entrySet()) {
+                timestamps[i] = version.getKey();
+                values[i++] = version.getValue();
+            }
+            return new VersionView<>(timestamps, values, 0, timestamps.length);
+        }
+
+        private long hiddenUpTo(String key1, String subKey) {
+            if (tombstones.isEmpty()) {
+                return 0;
+            }
+            return Math.max(tombstones.getOrDefault(key1, 0L),
+                    tombstones.getOrDefault(key1 + '\u0000' + subKey, 0L));
+        }
+
+        // Called with the spill locked, after the key or subkey has been removed from memory.
+        void tombstone(String key1, String subKey) {
+            if (segments.isEmpty()) {
+                return;
+            }
+            String key = subKey == null ? key1 : key1 + '\u0000' + subKey;
+            long watermark = nextSegmentId - 1;
+            tombstones.merge(key, watermark, Math::max);
+            pendingTombstones.merge(key, watermark, Math::max);
+        }
+
+        synchronized long flush(long coldBeforeTimestamp) throws IOException {
+            List<VersionHistory<V>> histories = new ArrayList<>();
+            List<VersionView<V>> flushed = new ArrayList<>();
+            SegmentBatch batch = new SegmentBatch(new HashMap<>(pendingTombstones));
+            long cutoffTimestamp = retentionCutoff();
+            for (Map.Entry<byte[], String> key1 : sortedUtf8(keys()).entrySet()) {
+                Map<String, VersionHistory<V>> subKeyMap = dataFor(key1.getValue()).get(key1.getValue());
+                if (subKeyMap == null) {
+                    continue;
+                }
+                for (Map.Entry<byte[], String> subKey : sortedUtf8(subKeyMap.keySet()).entrySet()) {
+                    VersionHistory<V> history = subKeyMap.get(subKey.getValue());
+                    if (history == null) {
+                        continue;
+                    }
+                    if (history.hasSpilled() && retains()) {
+                        retain(history, spilledTimestamps(key1.getKey(), subKey.getKey(), history), cutoffTimestamp);
+                    } else {
+                        history.trim(retention.maxVersionsPerSubKey, cutoffTimestamp, false);
+                    }
+                    VersionView<V> cold = history.unpersistedVersions(coldBeforeTimestamp);
+                    Packed.Reader<V> reader = new Packed.Reader<>();
+                    for (int i = cold.from; i < cold.to; i++) {
+                        V value = reader.valueOf(cold.values[i], cold.timestamps[i]);
+                        batch.append(key1.getKey(), subKey.getKey(), cold.timestamps[i], codec.encode(value));
+                    }
+                    histories.add(history);
+                    flushed.add(cold);
+                }
+            }
+            List<Segment> written = batch.finish();
+            if (written.isEmpty()) {
+                return 0;
+            }
+            List<Segment> published = new ArrayList<>(written);
+            Collections.reverse(published);
+            published.addAll(segments);
+            publish(published);
+            pendingTombstones.clear();
+
+            long spilled = 0;
+            for (int i = 0; i < histories.size(); i++) {
+                spilled += histories.get(i).removeSpilled(flushed.get(i));
+            }
+            return spilled;
+        }
+
+        /**
+         * Rewrites all segments as one sorted run, dropping versions hidden by tombstones, older copies of a
+         * version that was flushed more than once, and versions the retention limits drop once the subkey's
+         * segment and in-memory versions are counted together.
+         */
+        synchronized void merge() throws IOException {
+            List<Segment> current = segments;
+            if (current.isEmpty() || (current.size() < 2 && tombstones.isEmpty() && !retains())) {
+                return;
+            }
+            PriorityQueue<SegmentCursor> cursors = new PriorityQueue<>();
+            for (Segment segment : current) {
+                if (segment.dataEnd > 0) {
+                    cursors.add(new SegmentCursor(segment));
+                }
+            }
+            SegmentBatch batch = new SegmentBatch(Collections.emptyMap());
+            long cutoffTimestamp = retentionCutoff();
+            List<SegmentCursor> group = new ArrayList<>();
+            SegmentCursor last = null;
+            while (!cursors.isEmpty()) {
+                SegmentCursor cursor = cursors.poll();
+                if (last != null && !cursor.sameGroup(last)) {
+                    appendRetained(batch, group, cutoffTimestamp);
+                    group.clear();
+                }
+                boolean duplicate = last != null && cursor.sameVersion(last);
+                last = cursor.copy();
+                if (!duplicate && !hidden(cursor)) {
+                    group.add(last);
+                }
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+            appendRetained(batch, group, cutoffTimestamp);
+            List<Segment> merged = batch.finish();
+            Collections.reverse(merged);
+            publish(merged);
+            tombstones.clear();
+            pendingTombstones.clear();
+            for (Segment segment : current) {
+                Files.deleteIfExists(segment.path);
+            }
+        }
+
+        // Writes the versions of one subkey, oldest first, that survive retention alongside those in memory.
+        private void appendRetained(SegmentBatch batch, List<SegmentCursor> group, long cutoffTimestamp)
+                throws IOException {
+            if (group.isEmpty()) {
+                return;
+            }
+            SegmentCursor first = group.get(0);
+            String key1 = new String(first.key1, StandardCharsets.UTF_8);
+            Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
+            VersionHistory<V> history = subKeyMap == null
+                    ? null : subKeyMap.get(new String(first.subKey, StandardCharsets.UTF_8));
+            long retainedFrom = Long.MIN_VALUE;
+            if (history != null) {
+                long[] spilled = new long[group.size()];
+                for (int i = 0; i < spilled.length; i++) {
+                    spilled[i] = group.get(i).timestamp;
+                }
+                retainedFrom = retain(history, spilled, cutoffTimestamp);
+            }
+            for (SegmentCursor version : group) {
+                if (version.timestamp >= retainedFrom) {
+                    batch.append(version.key1, version.subKey, version.timestamp,
+                            version.segment.valueAt(version.position));
+                }
+            }
+        }
+
+        private boolean retains() {
+            return retention.maxVersionsPerSubKey > 0 || retention.maxAgeMillis > 0;
+        }
+
+        // Timestamps of the subkey's versions in segments that tombstones and retention have not hidden.
+        private long[] spilledTimestamps(byte[] key1, byte[] subKey, VersionHistory<V> history) {
+            long hiddenUpTo = hiddenUpTo(new String(key1, StandardCharsets.UTF_8),
+                    new String(subKey, StandardCharsets.UTF_8));
+            long retainedFrom = history.retainedFrom();
+            long[] all = new long[0];
+            for (Segment segment : segments) {
+                if (segment.id <= hiddenUpTo) {
+                    break;
+                }
+                long[] found = segment.timestamps(key1, subKey);
+                int from = Arrays.binarySearch(found, retainedFrom);
+                from = from >= 0 ? from : -from - 1;
+                int size = all.length;
+                all = Arrays.copyOf(all, size + found.length - from);
+                System.arraycopy(found, from, all, size, found.length - from);
+            }
+            return all;
+        }
+
+        /**
+         * Applies the retention limits to a subkey's spilled and in-memory versions counted together, dropping
+         * from memory and hiding in segments what they drop. Returns the oldest timestamp still retained.
+         */
+        private long retain(VersionHistory<V> history, long[] spilled, long cutoffTimestamp) {
+            long[] inMemory = history.timestamps();
+            long[] all = Arrays.copyOf(spilled, spilled.length + inMemory.length);
+            System.arraycopy(inMemory, 0, all, spilled.length, inMemory.length);
+            Arrays.sort(all);
+            int size = 0;
+            for (long timestamp : all) {
+                if (size == 0 || timestamp != all[size - 1]) {
+                    all[size++] = timestamp;
+                }
+            }
+            int drop = VersionHistory.retentionDrop(all, size, retention.maxVersionsPerSubKey, cutoffTimestamp);
+            if (drop > 0) {
+                history.retainFrom(all[drop]);
+            }
+            return history.retainedFrom();
+        }
+
+        private boolean hidden(SegmentCursor cursor) {
+            if (tombstones.isEmpty()) {
+                return false;
+            }
+            String key1 = new String(cursor.key1, StandardCharsets.UTF_8);
+            String subKey = new String(cursor.subKey, StandardCharsets.UTF_8);
+            return cursor.segment.id <= hiddenUpTo(key1, subKey);
+        }
+
+        private void publish(List<Segment> newestFirst) {
+            long max = Long.MIN_VALUE;
+            for (Segment segment : newestFirst) {
+                max = Math.max(max, segment.maxTimestamp);
+            }
+            maxTimestamp = max;
+            segments = Collections.unmodifiableList(newestFirst);
+        }
+
+        /**
+         * Opens the segments left in the directory and brings every live subkey's newest version back into memory.
+         */
+        synchronized void load() throws IOException {
+            Files.createDirectories(directory);
+            List<Segment> opened = new ArrayList<>();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(SEGMENT_SUFFIX + ".tmp")) {
+                        Files.delete(file);
+                    } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length()));
+                        opened.add(Segment.open(id, file));
+                    }
+                }
+            }
+            opened.sort(Comparator.comparingLong((Segment segment) -> segment.id).reversed());
+            for (Segment segment : opened) {
+                segment.tombstones.forEach((key, watermark) -> tombstones.merge(key, watermark, Math::max));
+                nextSegmentId = Math.max(nextSegmentId, segment.id + 1);
+            }
+            publish(opened);
+
+            // Newest segment first, so on equal timestamps the copy kept is the newest one.
+            Map<String, Map<String, Map.Entry<Long, V>>> newest = new HashMap<>();
+            for (Segment segment : opened) {
+                for (int position = 0; position < segment.dataEnd; position = segment.next(position)) {
+                    String key1 = new String(segment.key1At(position), StandardCharsets.UTF_8);
+                    String subKey = new String(segment.subKeyAt(position), StandardCharsets.UTF_8);
+                    long timestamp = segment.timestampAt(position);
+                    if (segment.id <= hiddenUpTo(key1, subKey)) {
+                        continue;
+                    }
+                    Map<String, Map.Entry<Long, V>> subKeys = newest.computeIfAbsent(key1, k -> new HashMap<>());
+                    Map.Entry<Long, V> seen = subKeys.get(subKey);
+                    if (seen == null || timestamp > seen.getKey()) {
+                        subKeys.put(subKey, new AbstractMap.SimpleImmutableEntry<>(timestamp,
+                                codec.decode(segment.valueAt(position))));
+                    }
+                }
+            }
+            newest.forEach((key1, subKeys) -> subKeys.forEach((subKey, version) -> {
+                applyPut(key1, subKey, version.getKey(), version.getValue());
+                dataFor(key1).get(key1).get(subKey).markPersisted(version.getKey());
+            }));
+        }
+
+        private Path segmentPath(long id) {
+            return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        }
+
+        private TreeMap<byte[], String> sortedUtf8(Collection<String> keys) {
+            TreeMap<byte[], String> sorted = new TreeMap<>(Arrays::compareUnsigned);
+            for (String key : keys) {
+                sorted.put(key.getBytes(StandardCharsets.UTF_8), key);
+            }
+            return sorted;
+        }
+
+        /**
+         * Writes a sorted run into as many segments as SEGMENT_MAX_BYTES requires. Each file is written under a
+         * temporary name and renamed once complete, so a crash never leaves a partial segment behind.
+         */
+        private final class SegmentBatch {
+            private final List<Segment> written = new ArrayList<>();
+            private Map<String, Long> tombstones;
+            private SegmentWriter writer;
+
+            SegmentBatch(Map<String, Long> tombstones) {
+                this.tombstones = tombstones;
+            }
+
+            void append(byte[] key1, byte[] subKey, long timestamp, byte[] value) throws IOException {
+                if (writer == null) {
+                    open();
+                }
+                writer.append(key1, subKey, timestamp, value);
+                if (writer.size() >= SEGMENT_MAX_BYTES) {
+                    close();
+                }
+            }
+
+            // Oldest first.
+            List<Segment> finish() throws IOException {
+                if (writer == null && !tombstones.isEmpty()) {
+                    open();
+                }
+                if (writer != null) {
+                    close();
+                }
+                return written;
+            }
+
+            private void open() throws IOException {
+                long id = nextSegmentId++;
+                writer = new SegmentWriter(id, segmentPath(id).resolveSibling(segmentPath(id).getFileName() + ".tmp"));
+            }
+
+            private void close() throws IOException {
+                writer.finish(tombstones);
+                tombstones = Collections.emptyMap();
+                Path path = segmentPath(writer.id);
+                Files.move(writer.path, path, StandardCopyOption.ATOMIC_MOVE);
+                written.add(Segment.open(writer.id, path));
+                writer = null;
+            }
+        }
+    }
+
+    // Reads a segment's records in order for merging; newer segments sort first among equal versions.
+    private static final class SegmentCursor implements Comparable<SegmentCursor> {
+        final Segment segment;
+        int position;
+        byte[] key1;
+        byte[] subKey;
+        long timestamp;
+
+        SegmentCursor(Segment segment) {
+            this.segment = segment;
+            load();
+        }
+
+        private SegmentCursor(Segment segment, int position, byte[] key1, byte[] subKey, long timestamp) {
+            this.segment = segment;
+            this.position = position;
+            this.key1 = key1;
+            this.subKey = subKey;
+            this.timestamp = timestamp;
+        }
+
+        private void load() {
+            key1 = segment.key1At(position);
+            subKey = segment.subKeyAt(position);
+            timestamp = segment.timestampAt(position);
+        }
+
+        boolean advance() {
+            position = segment.next(position);
+            if (position >= segment.dataEnd) {
+                return false;
+            }
+            load();
+            return true;
+        }
+
+        SegmentCursor copy() {
+            return new SegmentCursor(segment, position, key1, subKey, timestamp);
+        }
+
+        boolean sameVersion(SegmentCursor other) {
+            return timestamp == other.timestamp && sameGroup(other);
+        }
+
+        boolean sameGroup(SegmentCursor other) {
+            return Arrays.equals(key1, other.key1) && Arrays.equals(subKey, other.subKey);
+        }
+
+        @Override
+        public int compareTo(SegmentCursor other) {
+            int order = Arrays.compareUnsigned(key1, other.key1);
+            if (order == 0) {
+                order = Arrays.compareUnsigned(subKey, other.subKey);
+            }
+            if (order == 0) {
+                order = Long.compare(timestamp, other.timestamp);
+            }
+            return order != 0 ? order : Long.compare(other.segment.id, segment.id);
+        }
+    }
+
+    /**
+     * With single-writer shards the put is queued for the shard's writer and becomes visible shortly after;
+     * awaitIngested waits until every queued put has been applied.
+     */
+    public void put(String key1, String subKey, long timestamp, V value) {
+        Objects.requireNonNull(value, "Value cannot be null");
+        Shard shard = shardFor(Objects.requireNonNull(key1, "Key cannot be null"));
+        if (shard.writer != null) {
+            shard.submit(new PendingPut<>(key1, Objects.requireNonNull(subKey, "Subkey cannot be null"), timestamp, value));
+        } else {
+            applyPut(key1, subKey, timestamp, value);
+        }
+    }
+
+    private void applyPut(String key1, String subKey, long timestamp, V value) {
+        ConcurrentMap<String, ConcurrentMap<String, VersionHistory<V>>> data = dataFor(key1);
+        while (true) {
+            ConcurrentMap<String, VersionHistory<V>> subKeyMap =
+                    data.computeIfAbsent(key1, k -> new ConcurrentHashMap<>());
+            VersionHistory<V> history = subKeyMap.computeIfAbsent(subKey, k -> new VersionHistory<>(footprint));
+            // A concurrent delete may have unlinked either map before the write landed; retry so it is not lost.
+            if (history.put(timestamp, value) && subKeyMap.get(subKey) == history && data.get(key1) == subKeyMap) {
+                return;
+            }
+            history.retire();
+        }
+    }
+
+    /**
+     * Applies puts as one batch: they are grouped by key1 and subkey, each subkey's history is looked up once, and
+     * its versions are added under a single lock, appended in bulk when they are newer than everything it holds.
+     * The result is the same as putting them one by one in iteration order. A null value rejects the whole batch
+     * before anything is applied.
+     */
+    public void putAll(Iterable<Put<V>> puts) {
+        Batch batch = new Batch(Integer.MAX_VALUE,
+                puts instanceof Collection ? ((Collection<?>) puts).size() : Batch.INITIAL_STAGING_SIZE);
+        for (Put<V> put : puts) {
+            batch.put(put.key1, put.subKey, put.timestamp, put.value);
+        }
+        batch.flush();
+    }
+
+    /**
+     * Returns a buffer for streaming ingest that applies its puts as a putAll batch every maxSize puts, on flush
+     * and on close.
+     */
+    public Batch openBatch(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        return new Batch(maxSize, Math.min(maxSize, Batch.INITIAL_STAGING_SIZE));
+    }
+
+    /**
+     * Puts buffered per shard, key1 and subkey. Buffered puts are not visible until the batch is applied. A
+     * batch is not thread-safe; give each producer its own.
+     *
+     * A put is staged in flat arrays in arrival order and counted against its run, found with one probe of an
+     * open-addressed table keyed by key1 and subkey together. flush then scatters the staged puts into one pair
+     * of columns laid out run by run, so buffering allocates nothing per put and only one Run per subkey.
+     */
+    public final class Batch implements AutoCloseable {
+        private static final int INITIAL_TABLE_SIZE = 64;
+        private static final int INITIAL_STAGING_SIZE = 1024;
+
+        private final int maxSize;
+        private final List<List<Run>> runsByShard = new ArrayList<>(shards.size());
+        private Run[] table = new Run[INITIAL_TABLE_SIZE];
+        private int runCount;
+        private Run[] stagedRuns;
+        private long[] stagedTimestamps;
+        private Object[] stagedValues;
+        private int size;
+
+        private Batch(int maxSize, int expectedSize) {
+            this.maxSize = maxSize;
+            int capacity = Math.max(1, expectedSize);
+            stagedRuns = new Run[capacity];
+            stagedTimestamps = new long[capacity];
+            stagedValues = new Object[capacity];
+            for (int i = 0; i < shards.size(); i++) {
+                runsByShard.add(new ArrayList<>());
+            }
+        }
+
+        public void put(String key1, String subKey, long timestamp, V value) {
+            Objects.requireNonNull(key1, "Key cannot be null");
+            Objects.requireNonNull(subKey, "Subkey cannot be null");
+            Objects.requireNonNull(value, "Value cannot be null");
+            Run run = runFor(key1, subKey);
+            run.add(timestamp);
+            if (size == stagedRuns.length) {
+                int capacity = (int) Math.min(maxSize, Math.min(Integer.MAX_VALUE - 8, 2L * size));
+                stagedRuns = Arrays.copyOf(stagedRuns, capacity);
+                stagedTimestamps = Arrays.copyOf(stagedTimestamps, capacity);
+                stagedValues = Arrays.copyOf(stagedValues, capacity);
+            }
+            stagedRuns[size] = run;
+            stagedTimestamps[size] = timestamp;
+            stagedValues[size] = value;
+            if (++size >= maxSize) {
+                flush();
+            }
+        }
+
+        private Run runFor(String key1, String subKey) {
+            int hash = (key1.hashCode() * 31 + subKey.hashCode()) * 0x9E3779B9;
+            int mask = table.length - 1;
+            for (int slot = hash >>> 16 & mask; ; slot = (slot + 1) & mask) {
+                Run run = table[slot];
+                if (run == null) {
+                    run = new Run(key1, subKey, hash);
+                    table[slot] = run;
+                    runsByShard.get(shardIndex(key1)).add(run);
+                    if (++runCount * 2 > table.length) {
+                        resize();
+                    }
+                    return run;
+                }
+                if (run.isFor(hash, key1, subKey)) {
+                    return run;
+                }
+            }
+        }
+
+        private void resize() {
+            Run[] grown = new Run[table.length * 2];
+            int mask = grown.length - 1;
+            for (Run run : table) {
+                if (run != null) {
+                    int slot = run.hash >>> 16 & mask;
+                    while (grown[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    grown[slot] = run;
+                }
+            }
+            table = grown;
+        }
+
+        public void flush() {
+            if (size == 0) {
+                return;
+            }
+            // Fresh columns every flush: a single-writer shard reads them after this returns.
+            long[] timestamps = new long[size];
+            Object[] values = new Object[size];
+            int offset = 0;
+            for (List<Run> runs : runsByShard) {
+                for (Run run : runs) {
+                    run.timestamps = timestamps;
+                    run.values = values;
+                    run.from = offset;
+                    offset += run.size;
+                    run.size = 0;
+                }
+            }
+            // Refills each run's size as its slice is written, in arrival order.
+            for (int i = 0; i < size; i++) {
+                Run run = stagedRuns[i];
+                int index = run.from + run.size++;
+                timestamps[index] = stagedTimestamps[i];
+                values[index] = stagedValues[i];
+            }
+            Arrays.fill(stagedRuns, 0, size, null);
+            Arrays.fill(stagedValues, 0, size, null);
+            for (int i = 0; i < runsByShard.size(); i++) {
+                List<Run> runs = runsByShard.get(i);
+                if (runs.isEmpty()) {
+                    continue;
+                }
+                Shard shard = shards.get(i);
+                if (shard.writer != null) {
+                    shard.submit(new PendingPut<>(runs));
+                } else {
+                    applyRuns(runs);
+                }
+                runsByShard.set(i, new ArrayList<>());
+            }
+            Arrays.fill(table, null);
+            runCount = 0;
+            size = 0;
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    private void applyRuns(List<Run> runs) {
+        for (Run run : runs) {
+            ConcurrentMap<String, ConcurrentMap<String, VersionHistory<V>>> data = dataFor(run.key1);
+            ConcurrentMap<String, VersionHistory<V>> subKeyMap = data.get(run.key1);
+            while (true) {
+                if (subKeyMap == null) {
+                    subKeyMap = data.computeIfAbsent(run.key1, k -> new ConcurrentHashMap<>());
+                }
+                VersionHistory<V> history = subKeyMap.get(run.subKey);
+                if (history == null) {
+                    history = subKeyMap.computeIfAbsent(run.subKey, k -> new VersionHistory<>(footprint));
+                }
+                // Same retry as applyPut: a delete may have unlinked either map while the run was added.
+                if (history.putAll(run) && subKeyMap.get(run.subKey) == history && data.get(run.key1) == subKeyMap) {
+                    break;
+                }
+                history.retire();
+                subKeyMap = null;
+            }
+        }
+    }
+
+    /**
+     * Waits until every put queued before this call has been applied. Returns immediately unless the store has
+     * single-writer shards. If a queued put failed since the last call, throws IllegalStateException with the
+     * first such failure as its cause; the put was dropped, and every other queued put was still applied.
+     */
+    public void awaitIngested() throws InterruptedException {
+        List<CountDownLatch> barriers = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.writer != null) {
+                barriers.add(shard.barrier());
+            }
+        }
+        for (CountDownLatch barrier : barriers) {
+            barrier.await();
+        }
+        throwQueuedFailure();
+    }
+
+    /**
+     * Applies every queued put and stops the shard writers; later puts are applied by the calling thread. Throws
+     * like awaitIngested if a queued put failed.
+     */
+    public void stopWriters() throws InterruptedException {
+        for (Shard shard : shards) {
+            if (shard.writer != null) {
+                shard.stop();
+            }
+        }
+        throwQueuedFailure();
+    }
+
+    /**
+     * How many queued puts have failed and been dropped since the store was created.
+     */
+    public long getFailedPutCount() {
+        long failed = 0;
+        for (Shard shard : shards) {
+            failed += shard.failedPuts.sum();
+        }
+        return failed;
+    }
+
+    private void throwQueuedFailure() {
+        IllegalStateException reported = null;
+        for (Shard shard : shards) {
+            RuntimeException failure = shard.failure.getAndSet(null);
+            if (failure == null) {
+                continue;
+            }
+            if (reported == null) {
+                reported = new IllegalStateException("Queued put failed", failure);
+            } else {
+                reported.addSuppressed(failure);
+            }
+        }
+        if (reported != null) {
+            throw reported;
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    // Spreads the hash with a multiplicative mix and maps its high bits onto the shards, so shard choice is
+    // independent of the low bits each shard's ConcurrentHashMap uses for its own bins.
+    private int shardIndex(String key1) {
+        if (shards.size() == 1) {
+            return 0;
+        }
+        long mixed = (key1.hashCode() * 0x9E3779B9) & 0xFFFFFFFFL;
+        return (int) ((mixed * shards.size()) >>> 32);
+    }
+
+    private Shard shardFor(String key1) {
+        return shards.get(shardIndex(key1));
     }
 
-    public void put(String key1, String subKey, long timestamp, V value) {
-        Map<String, TreeMap<Long, V>> subKeyMap = data.computeIfAbsent(key1, k -> new ConcurrentHashMap<>());
-        TreeMap<Long, V> timestampMap = subKeyMap.computeIfAbsent(subKey, k -> new TreeMap<>());
-        timestampMap.put(timestamp, value);
+    private ConcurrentMap<String, ConcurrentMap<String, VersionHistory<V>>> dataFor(String key1) {
+        return shardFor(key1).data;
+    }
+
+    private List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (Shard shard : shards) {
+            keys.addAll(shard.data.keySet());
+        }
+        return keys;
+    }
+
+    // Drains the key's shard queue first, so a delete is ordered after the caller's earlier puts to that key.
+    private void awaitIngested(String key1) {
+        Shard shard = shardFor(key1);
+        if (shard.writer == null) {
+            return;
+        }
+        CountDownLatch barrier = shard.barrier();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                barrier.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Resolves each key with lookup and returns the non-null results. Keys are grouped by shard first; a large
+     * batch on a sharded store resolves the groups in parallel, each group reading only its own shard.
+     */
+    private <R> Map<String, R> gather(Collection<String> keys, Function<String, R> lookup) {
+        List<List<String>> groups = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (String key1 : keys) {
+            groups.get(shardIndex(key1)).add(key1);
+        }
+        Map<String, R> results = new ConcurrentHashMap<>();
+        IntStream groupIndexes = IntStream.range(0, groups.size());
+        if (shards.size() > 1 && keys.size() >= PARALLEL_GATHER_MIN_KEYS) {
+            groupIndexes = groupIndexes.parallel();
+        }
+        groupIndexes.forEach(i -> {
+            for (String key1 : groups.get(i)) {
+                R result = lookup.apply(key1);
+                if (result != null) {
+                    results.put(key1, result);
+                }
+            }
+        });
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Returns a read-only view of every subkey's history. Each subkey's versions are a snapshot of its history
+     * taken when that subkey is read, and the set of subkeys follows the live key. Nothing is copied unless the
+     * subkey has versions in segments, which are read in with the ones in memory.
+     */
+    public Map<String, NavigableMap<Long, V>> getAllValues(String key1) {
+        Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
+        if (subKeyMap == null) {
+            return Collections.emptyMap();
+        }
+        return new SubKeyView<>(subKeyMap,
+                (subKey, history) -> versions(key1, subKey, history, Long.MIN_VALUE, Long.MAX_VALUE));
     }
 
-    public Map<String, TreeMap<Long, V>> getAllValues(String key1) {
-        Map<String, TreeMap<Long, V>> subKeyMap = data.get(key1);
+    /**
+     * Returns a read-only view mapping each subkey of key1 to its latest value, resolved as it is read.
+     */
+    public Map<String, V> getLatestValues(String key1) {
+        Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
         if (subKeyMap == null) {
             return Collections.emptyMap();
         }
-        return new HashMap<>(subKeyMap);
+        return new SubKeyView<>(subKeyMap, (subKey, history) -> history.latest());
     }
 
     public Optional<V> getLatestValue(String key1, String subKey) {
-        Map<String, TreeMap<Long, V>> subKeyMap = data.get(key1);
+        Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
         if (subKeyMap != null) {
-            TreeMap<Long, V> timestampMap = subKeyMap.get(subKey);
-            if (timestampMap != null && !timestampMap.isEmpty()) {
-                Map.Entry<Long, V> latestEntry = timestampMap.lastEntry();
-                return Optional.ofNullable(latestEntry.getValue());
+            VersionHistory<V> history = subKeyMap.get(subKey);
+            if (history != null) {
+                return Optional.ofNullable(history.latest());
             }
         }
         return Optional.empty();
     }
 
     public Optional<V> getValueAtTimestamp(String key1, String subKey, long queryTimestamp) {
-        Map<String, TreeMap<Long, V>> subKeyMap = data.get(key1);
+        Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
         if (subKeyMap != null) {
-            TreeMap<Long, V> timestampMap = subKeyMap.get(subKey);
-            if (timestampMap != null && !timestampMap.isEmpty()) {
-                Map.Entry<Long, V> entry = timestampMap.floorEntry(queryTimestamp);
-                if (entry != null) {
-                    return Optional.ofNullable(entry.getValue());
-                }
+            VersionHistory<V> history = subKeyMap.get(subKey);
+            if (history != null) {
+                Spill segments = spill;
+                return segments == null
+                        ? Optional.ofNullable(history.floor(queryTimestamp))
+                        : segments.floor(key1, subKey, history, queryTimestamp);
             }
         }
         return Optional.empty();
     }
 
+    /**
+     * Returns the versions of subKey with fromInclusive <= timestamp < toExclusive as a read-only view over a
+     * snapshot of its history; iterating it copies nothing unless versions in the range had to be read in from
+     * segments.
+     */
+    public NavigableMap<Long, V> getHistory(String key1, String subKey, long fromInclusive, long toExclusive) {
+        Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
+        if (subKeyMap != null) {
+            VersionHistory<V> history = subKeyMap.get(subKey);
+            if (history != null && fromInclusive < toExclusive) {
+                return versions(key1, subKey, history, fromInclusive, toExclusive - 1);
+            }
+        }
+        return Collections.emptyNavigableMap();
+    }
+
+    /**
+     * Streams every version of every subkey of key1 with fromInclusive <= timestamp < toExclusive in timestamp
+     * order, including versions in segments. Each subkey's history is snapshotted when the iterator is created;
+     * versions are read from it as the iterator advances.
+     */
+    public Iterator<Change<V>> getChanges(String key1, long fromInclusive, long toExclusive) {
+        Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
+        if (subKeyMap == null || fromInclusive >= toExclusive) {
+            return Collections.emptyIterator();
+        }
+        return new ChangeFeed<>(subKeyMap,
+                (subKey, history) -> versions(key1, subKey, history, fromInclusive, toExclusive - 1));
+    }
+
+    private VersionView<V> versions(String key1, String subKey, VersionHistory<V> history, long fromInclusive,
+            long toInclusive) {
+        Spill segments = spill;
+        return segments == null
+                ? (VersionView<V>) history.view().subMap(fromInclusive, true, toInclusive, true)
+                : segments.range(key1, subKey, history, fromInclusive, toInclusive);
+    }
+
+    /**
+     * Returns the value every subkey of key1 had at timestamp, resolved in one pass over the key's subkeys;
+     * subkeys with no version at or before timestamp are absent.
+     */
+    public Map<String, V> getSnapshotAt(String key1, long timestamp) {
+        Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
+        if (subKeyMap == null) {
+            return Collections.emptyMap();
+        }
+        return snapshotAt(key1, subKeyMap, timestamp);
+    }
+
+    /**
+     * getSnapshotAt for several keys at the same timestamp; keys with no subkey visible at timestamp are absent.
+     */
+    public Map<String, Map<String, V>> getSnapshotsAt(Collection<String> keys, long timestamp) {
+        return gather(keys, key1 -> {
+            Map<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
+            if (subKeyMap == null) {
+                return null;
+            }
+            Map<String, V> snapshot = snapshotAt(key1, subKeyMap, timestamp);
+            return snapshot.isEmpty() ? null : snapshot;
+        });
+    }
+
+    /**
+     * getLatestValue for one subkey across several keys; keys without that subkey are absent.
+     */
+    public Map<String, V> getLatestValues(Collection<String> keys, String subKey) {
+        return gather(keys, key1 -> getLatestValue(key1, subKey).orElse(null));
+    }
+
+    private Map<String, V> snapshotAt(String key1, Map<String, VersionHistory<V>> subKeyMap, long timestamp) {
+        Spill segments = spill;
+        Map<String, V> snapshot = new HashMap<>();
+        subKeyMap.forEach((subKey, history) -> {
+            V value = segments == null
+                    ? history.floor(timestamp)
+                    : segments.floor(key1, subKey, history, timestamp).orElse(null);
+            if (value != null) {
+                snapshot.put(subKey, value);
+            }
+        });
+        return Collections.unmodifiableMap(snapshot);
+    }
+
     public boolean deleteKey(String key1) {
-        return data.remove(key1) != null;
+        awaitIngested(key1);
+        Spill segments = spill;
+        if (segments == null) {
+            return removeKey(key1);
+        }
+        synchronized (segments) {
+            boolean removed = removeKey(key1);
+            if (removed) {
+                segments.tombstone(key1, null);
+            }
+            return removed;
+        }
+    }
+
+    private boolean removeKey(String key1) {
+        ConcurrentMap<String, VersionHistory<V>> subKeyMap = dataFor(key1).remove(key1);
+        if (subKeyMap == null) {
+            return false;
+        }
+        subKeyMap.values().forEach(VersionHistory::retire);
+        return true;
     }
 
     public boolean deleteSubkey(String key1, String subKey) {
-        Map<String, TreeMap<Long, V>> subKeyMap = data.get(key1);
+        awaitIngested(key1);
+        Spill segments = spill;
+        if (segments == null) {
+            return removeSubkey(key1, subKey);
+        }
+        synchronized (segments) {
+            boolean removed = removeSubkey(key1, subKey);
+            if (removed) {
+                segments.tombstone(key1, subKey);
+            }
+            return removed;
+        }
+    }
+
+    private boolean removeSubkey(String key1, String subKey) {
+        ConcurrentMap<String, VersionHistory<V>> subKeyMap = dataFor(key1).get(key1);
         if (subKeyMap != null) {
-            boolean removed = subKeyMap.remove(subKey) != null;
+            VersionHistory<V> history = subKeyMap.remove(subKey);
+            boolean removed = history != null;
             if (removed) {
+                history.retire();
                 if (subKeyMap.isEmpty()) {
-                    data.remove(key1, subKeyMap);
+                    dataFor(key1).remove(key1, subKeyMap);
                 }
                 return true;
             }
@@ -67,7 +3027,684 @@ public class KeyValueStore<V> {
         return false;
     }
 
-    public static void main(String[] args) {
+    /**
+     * Applies the retention policy to every subkey once and returns how many versions were dropped.
+     */
+    public long compact() {
+        long reclaimed = 0;
+        for (Shard shard : shards) {
+            for (ConcurrentMap<String, VersionHistory<V>> subKeyMap : shard.data.values()) {
+                for (VersionHistory<V> history : subKeyMap.values()) {
+                    reclaimed += trim(history);
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Applies the retention policy in the background, visiting at most subKeysPerTick subkeys every
+     * intervalMillis and resuming where the previous tick stopped. Each subkey is trimmed under its own lock,
+     * so a put only waits if it targets the subkey being trimmed at that moment.
+     */
+    public synchronized void startCompactor(long intervalMillis, int subKeysPerTick) {
+        if (intervalMillis <= 0 || subKeysPerTick <= 0) {
+            throw new IllegalArgumentException("Interval and batch size must be positive");
+        }
+        if (compactor != null) {
+            throw new IllegalStateException("Compactor already running");
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KeyValueStore-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> compactIncrementally(subKeysPerTick),
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopCompactor() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+    }
+
+    private void compactIncrementally(int subKeysPerTick) {
+        synchronized (compactionLock) {
+            for (int visited = 0; visited < subKeysPerTick; visited++) {
+                while (!compactionSubKeys.hasNext()) {
+                    if (!compactionKeys.hasNext()) {
+                        compactionKeys = shards.stream().flatMap(shard -> shard.data.values().stream()).iterator();
+                        if (!compactionKeys.hasNext()) {
+                            return;
+                        }
+                    }
+                    compactionSubKeys = compactionKeys.next().values().iterator();
+                }
+                trim(compactionSubKeys.next());
+            }
+        }
+    }
+
+    private int trim(VersionHistory<V> history) {
+        boolean overBudget = retention.maxBytes > 0 && footprint.bytes.sum() > retention.maxBytes;
+        int dropped = history.trim(retention.maxVersionsPerSubKey, retentionCutoff(), overBudget);
+        Codec<V> codec = compression;
+        if (codec != null) {
+            history.pack(codec);
+        }
+        return dropped;
+    }
+
+    private long retentionCutoff() {
+        return retention.maxAgeMillis > 0 ? clock.getAsLong() - retention.maxAgeMillis : Long.MIN_VALUE;
+    }
+
+    /**
+     * Makes compaction, compact or the background compactor, also pack each subkey's older versions with codec in
+     * blocks of Packed.BLOCK_VERSIONS, delta-encoded against each other and deflated. Packed versions are
+     * decoded when read; the newest version of a subkey is never packed, so getLatestValue is unaffected.
+     */
+    public void enableCompression(Codec<V> codec) {
+        compression = Objects.requireNonNull(codec, "Codec cannot be null");
+    }
+
+    /**
+     * Keeps cold versions in segment files under directory, reopening any segments already there. Must be called
+     * before the store is used. Versions and deletes only reach disk when flushed, so flushColdVersions with
+     * Long.MAX_VALUE before shutting down makes everything durable.
+     */
+    public void enableSpill(Path directory, Codec<V> codec) throws IOException {
+        Objects.requireNonNull(directory, "Directory cannot be null");
+        Objects.requireNonNull(codec, "Codec cannot be null");
+        synchronized (this) {
+            if (spill != null) {
+                throw new IllegalStateException("Spill already enabled");
+            }
+            if (!shards.stream().allMatch(shard -> shard.data.isEmpty())) {
+                throw new IllegalStateException("Spill must be enabled on an empty store");
+            }
+            Spill segments = new Spill(directory, codec);
+            segments.load();
+            spill = segments;
+        }
+    }
+
+    /**
+     * Writes every version older than coldBeforeTimestamp that is not yet on disk to new segments and drops them
+     * from the heap, keeping each subkey's newest version in memory. Returns how many versions left the heap.
+     * Throws if the spill flusher has failed since this or stopSpillFlusher last reported it; a failed flush
+     * leaves its versions in memory, so calling again retries them.
+     */
+    public long flushColdVersions(long coldBeforeTimestamp) throws IOException {
+        Spill segments = requireSpill();
+        throwSpillFailure();
+        return segments.flush(coldBeforeTimestamp);
+    }
+
+    public void mergeSegments() throws IOException {
+        requireSpill().merge();
+    }
+
+    public int getSegmentCount() {
+        Spill segments = spill;
+        return segments == null ? 0 : segments.segments.size();
+    }
+
+    /**
+     * Every intervalMillis flushes versions older than coldAfterMillis by the store's clock, then merges the
+     * segments once there are more than maxSegments.
+     */
+    public synchronized void startSpillFlusher(long intervalMillis, long coldAfterMillis, int maxSegments) {
+        requireSpill();
+        if (intervalMillis <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("Interval and segment limit must be positive");
+        }
+        if (spillFlusher != null) {
+            throw new IllegalStateException("Spill flusher already running");
+        }
+        spillFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "KeyValueStore-spill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        spillFlusher.scheduleWithFixedDelay(() -> {
+            try {
+                requireSpill().flush(clock.getAsLong() - coldAfterMillis);
+                if (getSegmentCount() > maxSegments) {
+                    mergeSegments();
+                }
+            } catch (IOException | RuntimeException e) {
+                spillFailure.compareAndSet(null, e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the spill flusher, then throws the first failure it hit since the last one was reported.
+     */
+    public synchronized void stopSpillFlusher() throws IOException {
+        if (spillFlusher != null) {
+            spillFlusher.shutdown();
+            spillFlusher = null;
+        }
+        throwSpillFailure();
+    }
+
+    private void throwSpillFailure() throws IOException {
+        Exception failure = spillFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IOException("Background spill flush failed", failure);
+        }
+    }
+
+    private Spill requireSpill() {
+        Spill segments = spill;
+        if (segments == null) {
+            throw new IllegalStateException("Spill not enabled");
+        }
+        return segments;
+    }
+
+    public RetentionStats getRetentionStats() {
+        return new RetentionStats(footprint.versions.sum(), footprint.bytes.sum(),
+                footprint.versionsReclaimed.sum(), footprint.bytesReclaimed.sum());
+    }
+
+    /**
+     * Retained heap per version for subKeyCount subkeys of versionsPerSubKey in-order versions each, stored as
+     * columns and, for comparison, as the TreeMap<Long, V> per subkey this store used to keep. All versions share
+     * one value object so only the per-version overhead is measured.
+     */
+    static void measureVersionHeap(int subKeyCount, int versionsPerSubKey) throws InterruptedException {
+        String value = "v";
+        long before = usedHeapAfterGc();
+        KeyValueStore<String> store = new KeyValueStore<>();
+        for (int s = 0; s < subKeyCount; s++) {
+            String subKey = "field" + s;
+            for (int v = 0; v < versionsPerSubKey; v++) {
+                store.put("user", subKey, 1_000L + v, value);
+            }
+        }
+        long columnBytes = usedHeapAfterGc() - before;
+
+        before = usedHeapAfterGc();
+        Map<String, TreeMap<Long, String>> treeMaps = new HashMap<>();
+        for (int s = 0; s < subKeyCount; s++) {
+            TreeMap<Long, String> versions = treeMaps.computeIfAbsent("field" + s, k -> new TreeMap<>());
+            for (int v = 0; v < versionsPerSubKey; v++) {
+                versions.put(1_000L + v, value);
+            }
+        }
+        long treeMapBytes = usedHeapAfterGc() - before;
+
+        double versions = (double) subKeyCount * versionsPerSubKey;
+        System.out.printf("  columns: %.1f bytes/version, TreeMap: %.1f bytes/version (%.1fx)%n",
+                columnBytes / versions, treeMapBytes / versions, (double) treeMapBytes / columnBytes);
+        // Keep both structures reachable until measured.
+        if (store.getLatestValue("user", "field0").isEmpty() || treeMaps.isEmpty()) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Bytes allocated by the calling thread reading the latest value of every subkey of a subKeyCount-wide row
+     * through getLatestValues, and through the per-subkey map copy getAllValues used to make.
+     */
+    static void measureWideRowRead(int subKeyCount, int versionsPerSubKey) {
+        KeyValueStore<String> store = new KeyValueStore<>();
+        for (int s = 0; s < subKeyCount; s++) {
+            for (int v = 0; v < versionsPerSubKey; v++) {
+                store.put("row", "field" + s, v, "value" + v);
+            }
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long sink = 0;
+        for (int round = 0; round < 3; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (String value : store.getLatestValues("row").values()) {
+                sink += value.length();
+            }
+            long viewBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            before = threads.getCurrentThreadAllocatedBytes();
+            Map<String, TreeMap<Long, String>> copy = new HashMap<>();
+            store.getAllValues("row").forEach((subKey, versions) -> copy.put(subKey, new TreeMap<>(versions)));
+            for (TreeMap<Long, String> versions : copy.values()) {
+                sink += versions.lastEntry().getValue().length();
+            }
+            long copyBytes = threads.getCurrentThreadAllocatedBytes() - before;
+            if (round == 2) {
+                System.out.printf("  view: %,d bytes allocated, copy: %,d bytes allocated (checksum %d)%n",
+                        viewBytes, copyBytes, sink);
+            }
+        }
+    }
+
+    /**
+     * Nanoseconds to reconstruct a subKeyCount-wide row as of a timestamp, with getSnapshotAt and with one
+     * getValueAtTimestamp call per subkey.
+     */
+    static void benchmarkSnapshotRead(int subKeyCount, int versionsPerSubKey, int rounds) {
+        KeyValueStore<String> store = new KeyValueStore<>();
+        String[] subKeys = new String[subKeyCount];
+        for (int s = 0; s < subKeyCount; s++) {
+            subKeys[s] = "field" + s;
+            for (int v = 0; v < versionsPerSubKey; v++) {
+                store.put("row", subKeys[s], v * 10L + s % 10, "value" + v);
+            }
+        }
+        long sink = 0;
+        long snapshotNanos = 0;
+        long lookupNanos = 0;
+        for (int round = 0; round < rounds; round++) {
+            long timestamp = ThreadLocalRandom.current().nextLong(versionsPerSubKey * 10L);
+            long start = System.nanoTime();
+            sink += store.getSnapshotAt("row", timestamp).size();
+            snapshotNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Map<String, String> row = new HashMap<>();
+            for (String subKey : subKeys) {
+                store.getValueAtTimestamp("row", subKey, timestamp).ifPresent(value -> row.put(subKey, value));
+            }
+            sink += row.size();
+            lookupNanos += System.nanoTime() - start;
+        }
+        System.out.printf("  getSnapshotAt: %,d ns/row, per-subkey lookups: %,d ns/row (checksum %d)%n",
+                snapshotNanos / rounds, lookupNanos / rounds, sink);
+    }
+
+    /**
+     * Replays half of a key's history, subKeyCount subkeys with versionsPerSubKey interleaved versions each,
+     * through getChanges and through per-subkey getHistory ranges, reporting versions per second.
+     */
+    static void benchmarkHistoryScan(int subKeyCount, int versionsPerSubKey) {
+        KeyValueStore<String> store = new KeyValueStore<>();
+        for (int v = 0; v < versionsPerSubKey; v++) {
+            for (int s = 0; s < subKeyCount; s++) {
+                store.put("row", "field" + s, (long) v * subKeyCount + s, "v");
+            }
+        }
+        long total = (long) subKeyCount * versionsPerSubKey;
+        long from = total / 4;
+        long to = from + total / 2;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long merged = 0;
+            for (Iterator<Change<String>> changes = store.getChanges("row", from, to); changes.hasNext(); ) {
+                changes.next();
+                merged++;
+            }
+            long mergedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long ranged = 0;
+            for (int s = 0; s < subKeyCount; s++) {
+                for (Map.Entry<Long, String> ignored : store.getHistory("row", "field" + s, from, to).entrySet()) {
+                    ranged++;
+                }
+            }
+            long rangedNanos = System.nanoTime() - start;
+            if (round == 2) {
+                System.out.printf("  time-ordered feed: %,d versions at %,.0f/s, per-subkey ranges: %,d versions at %,.0f/s%n",
+                        merged, merged * 1e9 / mergedNanos, ranged, ranged * 1e9 / rangedNanos);
+            }
+        }
+    }
+
+    /**
+     * Spills all but the newest versionsPerSubKey / 10 versions of subKeyCount subkeys to segments in a temporary
+     * directory, then times cold point reads, a merge and a reopen.
+     */
+    static void benchmarkSpill(int subKeyCount, int versionsPerSubKey, int reads) throws IOException {
+        Path directory = Files.createTempDirectory("kv-segments");
+        try {
+            KeyValueStore<String> store = new KeyValueStore<>();
+            store.enableSpill(directory, Codec.UTF8);
+            for (int s = 0; s < subKeyCount; s++) {
+                for (int v = 0; v < versionsPerSubKey; v++) {
+                    store.put("row" + s % 10, "field" + s, v, "value-" + s + "-" + v);
+                }
+            }
+            long inMemory = store.getRetentionStats().getRetainedVersions();
+            long cutoff = versionsPerSubKey - versionsPerSubKey / 10;
+            long start = System.nanoTime();
+            long spilled = store.flushColdVersions(cutoff / 2);
+            spilled += store.flushColdVersions(cutoff);
+            long flushMillis = (System.nanoTime() - start) / 1_000_000;
+            System.out.printf("  flushed %,d of %,d versions into %d segments in %d ms, %,d left in memory%n",
+                    spilled, inMemory, store.getSegmentCount(), flushMillis,
+                    store.getRetentionStats().getRetainedVersions());
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                if (i == reads / 2) {
+                    // The first half warms up the JIT and the page cache.
+                    start = System.nanoTime();
+                }
+                int s = random.nextInt(subKeyCount);
+                long timestamp = random.nextLong(cutoff);
+                String expected = "value-" + s + "-" + timestamp;
+                if (!expected.equals(store.getValueAtTimestamp("row" + s % 10, "field" + s, timestamp).orElse(null))) {
+                    throw new IllegalStateException("Wrong cold read for field" + s + " at " + timestamp);
+                }
+            }
+            System.out.printf("  cold getValueAtTimestamp: %,d ns/read over %d segments%n",
+                    (System.nanoTime() - start) / (reads - reads / 2), store.getSegmentCount());
+
+            int changes = 0;
+            for (Iterator<Change<String>> feed = store.getChanges("row7", 0, cutoff); feed.hasNext(); feed.next()) {
+                changes++;
+            }
+            System.out.println("  field7 in [3, 6): " + store.getHistory("row7", "field7", 3, 6).values()
+                    + ", row7 changes before the cutoff: " + changes + ", field7 versions: "
+                    + store.getAllValues("row7").get("field7").size());
+            // size only checks history lengths; iterating reads every subkey's spilled versions back in.
+            Map<String, NavigableMap<Long, String>> row7 = store.getAllValues("row7");
+            start = System.nanoTime();
+            int rowSize = row7.size();
+            long sizeNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            int iterated = 0;
+            for (Iterator<?> entries = row7.entrySet().iterator(); entries.hasNext(); entries.next()) {
+                iterated++;
+            }
+            System.out.printf("  row7 size: %d subkeys in %,d ns, iteration: %d subkeys in %,d ns%n", rowSize,
+                    sizeNanos, iterated, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            store.mergeSegments();
+            System.out.printf("  merged into %d segment in %d ms%n", store.getSegmentCount(),
+                    (System.nanoTime() - start) / 1_000_000);
+
+            store.flushColdVersions(Long.MAX_VALUE);
+            KeyValueStore<String> reopened = new KeyValueStore<>();
+            reopened.enableSpill(directory, Codec.UTF8);
+            System.out.println("  after reopen, field7 at 5: "
+                    + reopened.getValueAtTimestamp("row7", "field7", 5).orElse("Not found")
+                    + ", latest: " + reopened.getLatestValue("row7", "field7").orElse("Not found"));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    // Spills 100 versions of one subkey into a store keeping 5 per subkey, then merges the segments.
+    static void demonstrateSpillRetention() throws IOException {
+        Path directory = Files.createTempDirectory("kv-retention");
+        try {
+            KeyValueStore<String> store = new KeyValueStore<>(RetentionPolicy.keepAll().withMaxVersionsPerSubKey(5));
+            store.enableSpill(directory, Codec.UTF8);
+            for (long ts = 0; ts < 100; ts++) {
+                store.put("user1", "email", ts, "v" + ts);
+                if (ts % 4 == 3) {
+                    store.flushColdVersions(Long.MAX_VALUE);
+                }
+            }
+            System.out.println("  keep 5, " + store.getSegmentCount() + " segments: at 10 = "
+                    + store.getValueAtTimestamp("user1", "email", 10).orElse("Not found")
+                    + ", at 94 = " + store.getValueAtTimestamp("user1", "email", 94).orElse("Not found")
+                    + ", at 95 = " + store.getValueAtTimestamp("user1", "email", 95).orElse("Not found"));
+            store.mergeSegments();
+            long bytes = 0;
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    bytes += Files.size(file);
+                }
+            }
+            System.out.println("  after merge: " + store.getSegmentCount() + " segment of " + bytes + " bytes, at 95 = "
+                    + store.getValueAtTimestamp("user1", "email", 95).orElse("Not found"));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Fills two stores with the same slowly changing JSON-like values, packs one with compression and compacts it,
+     * then compares their heap and the cost of latest and old-version reads.
+     */
+    static void measureCompression(int subKeyCount, int versionsPerSubKey) throws InterruptedException {
+        long before = usedHeapAfterGc();
+        KeyValueStore<String> plain = new KeyValueStore<>();
+        fillSlowlyChanging(plain, subKeyCount, versionsPerSubKey);
+        long plainBytes = usedHeapAfterGc() - before;
+
+        before = usedHeapAfterGc();
+        KeyValueStore<String> packed = new KeyValueStore<>();
+        packed.enableCompression(Codec.UTF8);
+        fillSlowlyChanging(packed, subKeyCount, versionsPerSubKey);
+        packed.compact();
+        long packedBytes = usedHeapAfterGc() - before;
+
+        double versions = (double) subKeyCount * versionsPerSubKey;
+        System.out.printf("  plain: %.1f bytes/version, packed: %.1f bytes/version (%.1fx smaller)%n",
+                plainBytes / versions, packedBytes / versions, (double) plainBytes / packedBytes);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (KeyValueStore<String> store : List.of(plain, packed)) {
+            int reads = 200_000;
+            long started = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                store.getLatestValue("user", "field" + random.nextInt(subKeyCount));
+            }
+            long latestNanos = (System.nanoTime() - started) / reads;
+            reads = 20_000;
+            started = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                int s = random.nextInt(subKeyCount);
+                int v = random.nextInt(versionsPerSubKey);
+                if (!store.getValueAtTimestamp("user", "field" + s, v).orElseThrow().equals(slowlyChanging(s, v))) {
+                    throw new IllegalStateException("Wrong read for field" + s + " at " + v);
+                }
+            }
+            long oldNanos = (System.nanoTime() - started) / reads;
+            System.out.printf("  %s: getLatestValue %,d ns, old getValueAtTimestamp %,d ns%n",
+                    store == plain ? "plain " : "packed", latestNanos, oldNanos);
+        }
+    }
+
+    private static void fillSlowlyChanging(KeyValueStore<String> store, int subKeyCount, int versionsPerSubKey) {
+        for (int s = 0; s < subKeyCount; s++) {
+            for (int v = 0; v < versionsPerSubKey; v++) {
+                store.put("user", "field" + s, v, slowlyChanging(s, v));
+            }
+        }
+    }
+
+    private static String slowlyChanging(int subKey, int version) {
+        return "{\"id\":" + subKey + ",\"status\":\"active\",\"region\":\"eu-west\",\"visits\":" + (version * 3)
+                + ",\"score\":" + (version % 17) + "}";
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Some garbage only becomes collectable after a collection has run reference processing, so collect
+        // until the figure stops dropping.
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * Runs threads workers doing a random mix of put and getValueAtTimestamp over keyCount keys with
+     * subKeyCount subkeys each, returning total operations per second.
+     */
+    static double benchmarkMixed(int threads, int keyCount, int subKeyCount, int readPercent, long durationMillis)
+            throws InterruptedException {
+        KeyValueStore<String> store = new KeyValueStore<>();
+        String[] keys = new String[keyCount];
+        String[] subKeys = new String[subKeyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "user" + i;
+        }
+        for (int i = 0; i < subKeyCount; i++) {
+            subKeys[i] = "field" + i;
+        }
+        AtomicLong clock = new AtomicLong();
+
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + durationMillis * 1_000_000L;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            String key = keys[random.nextInt(keyCount)];
+                            String subKey = subKeys[random.nextInt(subKeyCount)];
+                            if (random.nextInt(100) < readPercent) {
+                                store.getValueAtTimestamp(key, subKey, random.nextLong(clock.get() + 1));
+                            } else {
+                                store.put(key, subKey, clock.incrementAndGet(), "v");
+                            }
+                        }
+                        ops += 256;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    operations.add(ops);
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        start.countDown();
+        done.await();
+        return operations.sum() * 1000.0 / durationMillis;
+    }
+
+
+    /**
+     * Puts from threads writers to random keys for durationMillis and returns the ingest rate, counting the time
+     * single-writer shards take to apply what is still queued when the writers stop.
+     */
+    static double benchmarkIngest(ShardConfig sharding, int threads, int keyCount, long durationMillis)
+            throws InterruptedException {
+        KeyValueStore<String> store = new KeyValueStore<>(
+                RetentionPolicy.keepAll(), value -> 0, System::currentTimeMillis, sharding);
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "user" + i;
+        }
+
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + durationMillis * 1_000_000L;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            store.put(keys[random.nextInt(keyCount)], "field", ops + i, "v");
+                        }
+                        ops += 256;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    operations.add(ops);
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        done.await();
+        store.awaitIngested();
+        long elapsed = System.nanoTime() - started;
+        store.stopWriters();
+        return operations.sum() * 1e9 / elapsed;
+    }
+
+    /**
+     * Ingests the same timestamp-ordered stream of puts over keyCount keys x subKeyCount subkeys once with put and
+     * once through batches of batchSize, keeping the faster of a few rounds of each.
+     */
+    static void benchmarkBatchIngest(int keyCount, int subKeyCount, int puts, int batchSize) {
+        String[] keys = new String[keyCount];
+        String[] subKeys = new String[subKeyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "user" + i;
+        }
+        for (int i = 0; i < subKeyCount; i++) {
+            subKeys[i] = "field" + i;
+        }
+        List<Put<String>> stream = new ArrayList<>(puts);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < puts; i++) {
+            stream.add(new Put<>(keys[random.nextInt(keyCount)], subKeys[random.nextInt(subKeyCount)], i, "v"));
+        }
+        long single = Long.MAX_VALUE;
+        long batched = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            KeyValueStore<String> store = new KeyValueStore<>();
+            long started = System.nanoTime();
+            for (Put<String> put : stream) {
+                store.put(put.getKey1(), put.getSubKey(), put.getTimestamp(), put.getValue());
+            }
+            single = Math.min(single, System.nanoTime() - started);
+
+            store = new KeyValueStore<>();
+            started = System.nanoTime();
+            for (int from = 0; from < puts; from += batchSize) {
+                store.putAll(stream.subList(from, Math.min(puts, from + batchSize)));
+            }
+            batched = Math.min(batched, System.nanoTime() - started);
+        }
+        System.out.printf("  put:    %,.0f puts/s%n", puts * 1e9 / single);
+        System.out.printf("  putAll: %,.0f puts/s (%.1fx, batches of %,d)%n",
+                puts * 1e9 / batched, (double) single / batched, batchSize);
+    }
+
+    // Times a multi-key latest-value read of every key, which a sharded store answers shard by shard in parallel.
+    static void benchmarkGather(ShardConfig sharding, int keyCount, int rounds) {
+        KeyValueStore<String> store = new KeyValueStore<>(sharding);
+        List<String> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add("user" + i);
+            store.put("user" + i, "email", 1, "user" + i + "@example.com");
+        }
+        int found = 0;
+        long started = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            found += store.getLatestValues(keys, "email").size();
+        }
+        long elapsed = System.nanoTime() - started;
+        System.out.printf("  %s: %,.0f keys/s (%,d found)%n",
+                sharding, (double) keyCount * rounds * 1e9 / elapsed, found);
+    }
+    public static void main(String[] args) throws InterruptedException, IOException {
         KeyValueStore<String> store = new KeyValueStore<>();
 
         store.put("user1", "email", 100L, "alice@example.com");
@@ -79,7 +3716,7 @@ public class KeyValueStore<V> {
         System.out.println("Current time (conceptual): 150L\n");
 
         System.out.println("1. All values for user1:");
-        Map<String, TreeMap<Long, String>> user1Data = store.getAllValues("user1");
+        Map<String, NavigableMap<Long, String>> user1Data = store.getAllValues("user1");
         user1Data.forEach((subKey, timestamps) -> {
             System.out.println("  SubKey: " + subKey);
             timestamps.forEach((ts, val) -> System.out.println("    Timestamp: " + ts + ", Value: " + val));
@@ -128,5 +3765,136 @@ public class KeyValueStore<V> {
 
         System.out.println("Check user2:");
         System.out.println("  Latest email for user2: " + store.getLatestValue("user2", "email").orElse("Not found"));
+        System.out.println("---");
+
+        System.out.println("6. Concurrent put/getValueAtTimestamp (1,000 keys x 10 subkeys, 80% reads):");
+        for (int threads : new int[]{1, 4, 16}) {
+            System.out.printf("  %2d threads: %,.0f ops/s%n", threads, benchmarkMixed(threads, 1_000, 10, 80, 500));
+        }
+        System.out.println("---");
+
+        System.out.println("7. Heap per version (1,000 subkeys x 1,000 versions):");
+        measureVersionHeap(1_000, 1_000);
+        System.out.println("---");
+
+        System.out.println("8. Retention (keep 5 versions, max age 1,000 at clock 10,000):");
+        AtomicLong now = new AtomicLong(10_000);
+        KeyValueStore<String> retained = new KeyValueStore<>(
+                RetentionPolicy.keepAll().withMaxVersionsPerSubKey(5).withMaxAge(1_000), String::length, now::get);
+        for (long ts = 0; ts < 10_000; ts += 100) {
+            retained.put("user1", "email", ts, "v" + ts);
+            retained.put("user1", "city", ts / 10, "c" + ts);
+        }
+        System.out.println("  Before: " + retained.getRetentionStats());
+        retained.startCompactor(10, 1);
+        Thread.sleep(100);
+        retained.stopCompactor();
+        System.out.println("  After:  " + retained.getRetentionStats());
+        System.out.println("  Email history: " + retained.getAllValues("user1").get("email").keySet());
+        System.out.println("  City history: " + retained.getAllValues("user1").get("city").keySet());
+        System.out.println("  City at 9,500: " + retained.getValueAtTimestamp("user1", "city", 9_500).orElse("Not found"));
+        System.out.println("---");
+
+        System.out.println("9. Reading the latest values of a 5,000-subkey row (20 versions each):");
+        measureWideRowRead(5_000, 20);
+        System.out.println("---");
+
+        System.out.println("10. As-of reads:");
+        KeyValueStore<String> profiles = new KeyValueStore<>();
+        profiles.put("user1", "email", 100L, "alice@example.com");
+        profiles.put("user1", "city", 110L, "New York");
+        profiles.put("user1", "email", 130L, "alice.updated@example.com");
+        profiles.put("user2", "email", 120L, "bob@example.com");
+        System.out.println("  user1 at 115L: " + profiles.getSnapshotAt("user1", 115L));
+        System.out.println("  user1, user2, user3 at 125L: "
+                + new TreeMap<>(profiles.getSnapshotsAt(List.of("user1", "user2", "user3"), 125L)));
+        benchmarkSnapshotRead(1_000, 50, 2_000);
+        System.out.println("---");
+
+        System.out.println("11. History ranges and change feeds:");
+        System.out.println("  user1 email in [100, 130): " + profiles.getHistory("user1", "email", 100L, 130L));
+        System.out.print("  user1 changes in [0, 200):");
+        profiles.getChanges("user1", 0L, 200L).forEachRemaining(change -> System.out.print(" " + change));
+        System.out.println();
+        for (int i = 0; i < 10; i++) {
+            profiles.put("user1", "visits", i * 10L, "visit" + i);
+        }
+        NavigableMap<Long, String> ascendingVisits = profiles.getHistory("user1", "visits", 0L, 100L);
+        NavigableMap<Long, String> visits = ascendingVisits.descendingMap();
+        NavigableMap<Long, String> copied = new TreeMap<>(ascendingVisits).descendingMap();
+        boolean matches = visits.equals(copied)
+                && List.copyOf(visits.entrySet()).equals(List.copyOf(copied.entrySet()))
+                && List.copyOf(visits.headMap(45L, true).keySet()).equals(List.copyOf(copied.headMap(45L, true).keySet()))
+                && List.copyOf(visits.subMap(70L, false, 20L, true).keySet())
+                        .equals(List.copyOf(copied.subMap(70L, false, 20L, true).keySet()))
+                && Objects.equals(visits.ceilingKey(45L), copied.ceilingKey(45L))
+                && Objects.equals(visits.higherKey(40L), copied.higherKey(40L))
+                && List.copyOf(visits.descendingKeySet()).equals(List.copyOf(copied.descendingKeySet()));
+        System.out.println("  user1 visits newest first: " + visits.navigableKeySet() + ", matches a TreeMap copy: "
+                + matches);
+        benchmarkHistoryScan(100, 20_000);
+        System.out.println("---");
+
+        System.out.println("12. Spilling cold versions to segments (1,000 subkeys x 1,000 versions):");
+        benchmarkSpill(1_000, 1_000, 100_000);
+        demonstrateSpillRetention();
+        System.out.println("---");
+
+        System.out.println("13. Sharded ingest (100,000 keys) and scatter/gather reads:");
+        ShardConfig[] shardings = {
+                ShardConfig.unsharded(), ShardConfig.hashed(64), ShardConfig.hashed(16).withSingleWriter()};
+        for (ShardConfig sharding : shardings) {
+            System.out.println("  " + sharding + ":");
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                System.out.printf("    %2d threads: %,.0f puts/s%n",
+                        threads, benchmarkIngest(sharding, threads, 100_000, 200));
+            }
+        }
+        KeyValueStore<String> sharded = new KeyValueStore<>(ShardConfig.hashed(8).withSingleWriter());
+        sharded.put("user1", "email", 100L, "user1@example.com");
+        sharded.put("user2", "email", 100L, "user2@example.com");
+        sharded.deleteKey("user2");
+        sharded.awaitIngested();
+        System.out.println("  Single-writer latest emails: " + new TreeMap<>(sharded.getLatestValues(
+                List.of("user1", "user2", "user3"), "email")));
+        sharded.stopWriters();
+        KeyValueStore<String> failing = new KeyValueStore<>(RetentionPolicy.keepAll(), value -> {
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("Empty value");
+            }
+            return value.length();
+        }, System::currentTimeMillis, ShardConfig.hashed(4).withSingleWriter());
+        failing.put("user1", "email", 100L, "");
+        failing.put("user1", "city", 100L, "Lisbon");
+        try {
+            failing.awaitIngested();
+        } catch (IllegalStateException e) {
+            System.out.println("  Queued put failure reported: " + e.getCause().getMessage() + ", failed puts: "
+                    + failing.getFailedPutCount() + ", user1: " + failing.getLatestValues("user1"));
+        }
+        failing.stopWriters();
+        benchmarkGather(ShardConfig.unsharded(), 100_000, 20);
+        benchmarkGather(ShardConfig.hashed(64), 100_000, 20);
+        System.out.println("---");
+
+        System.out.println("14. Batched ingest:");
+        KeyValueStore<String> batchedStore = new KeyValueStore<>();
+        batchedStore.putAll(List.of(
+                new Put<>("user1", "email", 100L, "user1@example.com"),
+                new Put<>("user1", "city", 100L, "Lisbon"),
+                new Put<>("user1", "email", 200L, "user1@work.com")));
+        try (KeyValueStore<String>.Batch batch = batchedStore.openBatch(2)) {
+            batch.put("user1", "city", 300L, "Porto");
+            batch.put("user2", "email", 300L, "user2@example.com");
+            batch.put("user1", "city", 250L, "Faro");
+        }
+        System.out.println("  user1: " + batchedStore.getAllValues("user1"));
+        System.out.println("  user2: " + batchedStore.getAllValues("user2"));
+        System.out.println("  1,000 keys x 10 subkeys, 2,000,000 puts in timestamp order:");
+        benchmarkBatchIngest(1_000, 10, 2_000_000, 100_000);
+        System.out.println("---");
+
+        System.out.println("15. Compressing older versions (1,000 subkeys x 1,000 versions):");
+        measureCompression(1_000, 1_000);
     }
 }
\ No newline at end of file